@@ -76,4 +76,16 @@ public class Configuration {
         return Integer.parseInt(get(property));
     }
 
+    public static String get(String property, String defaultValue) {
+        if (properties == null) {
+            properties = loadProperties();
+        }
+        return properties.getProperty(property, defaultValue);
+    }
+
+    public static int getInt(String property, int defaultValue) {
+        String value = get(property, null);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
 }
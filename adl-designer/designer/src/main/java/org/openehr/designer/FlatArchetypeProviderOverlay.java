@@ -20,28 +20,30 @@
 
 package org.openehr.designer;
 
+import org.apache.commons.lang.SerializationUtils;
 import org.openehr.adl.FlatArchetypeProvider;
 import org.openehr.adl.flattener.ArchetypeFlattener;
-import org.openehr.adl.rm.RmModel;
 import org.openehr.jaxb.am.Archetype;
 
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
+ * Provides archetypes from a list of overlay archetypes, falling back to the delegate for all other archetypes.
+ * Flat overlay archetypes are memoized for the lifetime of this instance.
+ *
  * @author Marko Pipan
  */
 public class FlatArchetypeProviderOverlay implements FlatArchetypeProvider {
     private final FlatArchetypeProvider delegate;
     private final Map<String, Archetype> overlayArchetypeMap;
-    private final ArchetypeFlattener flattener;
+    private final Map<String, Archetype> flatOverlayArchetypeMap = new ConcurrentHashMap<>();
 
 
     public FlatArchetypeProviderOverlay(FlatArchetypeProvider delegate, List<Archetype> archetypes) {
         this.delegate = delegate;
-        flattener = new ArchetypeFlattener();
-
         overlayArchetypeMap = new LinkedHashMap<>();
         for (Archetype archetype : archetypes) {
             overlayArchetypeMap.put(archetype.getArchetypeId().getValue(), archetype);
@@ -58,11 +60,23 @@ public class FlatArchetypeProviderOverlay implements FlatArchetypeProvider {
 
     @Override
     public Archetype getFlatArchetype(String archetypeId) {
-        Archetype source = getDifferentialArchetype(archetypeId);
-        Archetype parent = null;
-        if (source.getParentArchetypeId() != null && source.getParentArchetypeId().getValue() != null) {
-            parent = getFlatArchetype(source.getParentArchetypeId().getValue());
+        if (!overlayArchetypeMap.containsKey(archetypeId)) {
+            return delegate.getFlatArchetype(archetypeId);
+        }
+        return (Archetype) SerializationUtils.clone(getFlatOverlayArchetype(archetypeId));
+    }
+
+    private Archetype getFlatOverlayArchetype(String archetypeId) {
+        Archetype result = flatOverlayArchetypeMap.get(archetypeId);
+        if (result == null) {
+            Archetype source = overlayArchetypeMap.get(archetypeId);
+            Archetype parent = null;
+            if (source.getParentArchetypeId() != null && source.getParentArchetypeId().getValue() != null) {
+                parent = getFlatArchetype(source.getParentArchetypeId().getValue());
+            }
+            result = new ArchetypeFlattener().flatten(parent, source);
+            flatOverlayArchetypeMap.put(archetypeId, result);
         }
-        return flattener.flatten(parent, source);
+        return result;
     }
 }
@@ -20,15 +20,14 @@
 
 package org.openehr.designer.diff;
 
-import org.apache.commons.lang.SerializationUtils;
 import org.openehr.adl.FlatArchetypeProvider;
 import org.openehr.adl.am.mixin.AmMixins;
 import org.openehr.adl.am.mixin.MultiplicityIntervalMixin;
 import org.openehr.adl.rm.*;
 import org.openehr.adl.util.AdlUtils;
-import org.openehr.adl.util.ArchetypeWrapper;
 import org.openehr.jaxb.am.*;
 import org.openehr.jaxb.rm.MultiplicityInterval;
+import org.openehr.jaxb.rm.StringDictionaryItem;
 
 import javax.annotation.Nullable;
 import java.util.*;
@@ -37,6 +36,7 @@ import java.util.stream.Collectors;
 import static com.google.common.base.Preconditions.checkArgument;
 import static org.openehr.adl.rm.RmObjectFactory.newMultiplicityInterval;
 import static org.openehr.designer.diff.NodeIdDifferentiator.getSpecializationDepth;
+import static org.openehr.designer.diff.NodeIdDifferentiator.scanSpecializationDepth;
 
 
 
@@ -47,9 +47,20 @@ public class ArchetypeDifferentiator {
     private final RmModel rmModel;
     private final Archetype flatParent;
     private final Archetype flatChild;
-    private final ArchetypeWrapper flatParentWrapper;
     private final int archetypeSpecializationDepth;
 
+    // Lookup indexes, so that differentiation stays linear in the size of the archetype. Constraint indexes are keyed
+    // by identity and built on first access; they are only used on attributes and objects whose children are not
+    // modified while the index is in use.
+    private final Map<CAttribute, Map<String, CObject>> childrenByNodeId = new IdentityHashMap<>();
+    private final Map<CComplexObject, Map<String, CAttribute>> attributesByName = new IdentityHashMap<>();
+    // by language, then code
+    private final Map<String, Map<String, Map<String, String>>> parentTerms = new HashMap<>();
+    // by terminology, then code
+    private final Map<String, Map<String, String>> parentTermBindings = new HashMap<>();
+    // by value set id
+    private final Map<String, List<String>> parentValueSets = new HashMap<>();
+
     private ArchetypeDifferentiator(RmModel rmModel, @Nullable Archetype flatParent, Archetype flatChild) {
         checkArgument(flatParent == null || !flatParent.isIsDifferential(), "flatParent: must be a flat archetype or null");
         checkArgument(!flatChild.isIsDifferential(), "flatChild: must be a flat archetype");
@@ -57,10 +68,37 @@ public class ArchetypeDifferentiator {
         this.rmModel = rmModel;
         this.flatParent = flatParent;
         this.flatChild = flatChild;
-        this.flatParentWrapper = flatParent != null ? new ArchetypeWrapper(flatParent) : null;
         this.archetypeSpecializationDepth = getSpecializationDepth(flatChild.getDefinition().getNodeId());
     }
 
+    private void indexParentTerminology() {
+        ArchetypeTerminology terminology = flatParent.getTerminology();
+        if (terminology == null) return;
+        for (CodeDefinitionSet cds : terminology.getTermDefinitions()) {
+            Map<String, Map<String, String>> terms = parentTerms.computeIfAbsent(cds.getLanguage(), l -> new HashMap<>());
+            for (ArchetypeTerm term : cds.getItems()) {
+                terms.putIfAbsent(term.getCode(), toTermMap(term));
+            }
+        }
+        for (TermBindingSet tbs : terminology.getTermBindings()) {
+            Map<String, String> bindings = parentTermBindings.computeIfAbsent(tbs.getTerminology(), t -> new HashMap<>());
+            for (TermBindingItem item : tbs.getItems()) {
+                bindings.putIfAbsent(item.getCode(), item.getValue());
+            }
+        }
+        for (ValueSetItem valueSet : terminology.getValueSets()) {
+            parentValueSets.putIfAbsent(valueSet.getId(), valueSet.getMembers());
+        }
+    }
+
+    private static Map<String, String> toTermMap(ArchetypeTerm term) {
+        Map<String, String> result = new LinkedHashMap<>();
+        for (StringDictionaryItem item : term.getItems()) {
+            result.put(item.getId(), item.getValue());
+        }
+        return result;
+    }
+
     public static Archetype differentiate(RmModel rmModel, FlatArchetypeProvider flatArchetypeProvider, Archetype flatChild) {
         Archetype flatParent = null;
         if (flatChild.getParentArchetypeId() != null && flatChild.getParentArchetypeId().getValue() != null) {
@@ -80,6 +118,7 @@ public class ArchetypeDifferentiator {
         if (flatParent == null) {
             return diffChild; // no differentiation needed
         }
+        indexParentTerminology();
         pruneUnspecializedNodes(flatParent.getDefinition(), diffChild.getDefinition());
 
         makeDifferentialPaths(diffChild.getDefinition());
@@ -154,7 +193,7 @@ public class ArchetypeDifferentiator {
 
         for (Iterator<ValueSetItem> iterator = diffChild.getTerminology().getValueSets().iterator(); iterator.hasNext(); ) {
             ValueSetItem valueSetItem = iterator.next();
-            List<String> parentMembers = flatParentWrapper.getValueSet(valueSetItem.getId());
+            List<String> parentMembers = parentValueSets.get(valueSetItem.getId());
             if (parentMembers != null && parentMembers.equals(valueSetItem.getMembers())) {
                 iterator.remove();
             }
@@ -163,30 +202,28 @@ public class ArchetypeDifferentiator {
     }
 
     private void removeUnspecializedTermDefinitions(Archetype diffChild) {
-        ArchetypeWrapper diffChildWrapper = new ArchetypeWrapper(diffChild);
-        List<String> languages = diffChild.getTerminology().getTermDefinitions().stream()
-                .map(CodeDefinitionSet::getLanguage)
-                .collect(Collectors.toList());
-
         if (diffChild.getTerminology().getTermDefinitions().isEmpty()) return;
-        List<String> termIds = diffChild.getTerminology().getTermDefinitions().get(0).getItems().stream()
+        Set<String> termIds = diffChild.getTerminology().getTermDefinitions().get(0).getItems().stream()
                 .map(ArchetypeTerm::getCode)
-                .collect(Collectors.toList());
+                .collect(Collectors.toSet());
 
         Set<String> termsToKeep = new HashSet<>();
-
-        termLoop:
         for (String termId : termIds) {
             if (getSpecializationDepth(termId) == archetypeSpecializationDepth) {
                 termsToKeep.add(termId);
-                continue;
             }
-            for (String language : languages) {
-                Map<String, String> diffTerm = diffChildWrapper.getTerm(language, termId);
-                Map<String, String> parentTerm = flatParentWrapper.getTerm(language, termId);
-                if (diffTerm != null && !diffTerm.equals(parentTerm)) {
-                    termsToKeep.add(termId);
-                    continue termLoop;
+        }
+
+        for (CodeDefinitionSet cds : diffChild.getTerminology().getTermDefinitions()) {
+            Map<String, Map<String, String>> parentLanguageTerms = parentTerms.getOrDefault(cds.getLanguage(),
+                    Collections.emptyMap());
+            Set<String> seen = new HashSet<>();
+            for (ArchetypeTerm term : cds.getItems()) {
+                // only the first definition of a code in each language is compared
+                if (!seen.add(term.getCode()) || !termIds.contains(term.getCode())
+                        || termsToKeep.contains(term.getCode())) continue;
+                if (!toTermMap(term).equals(parentLanguageTerms.get(term.getCode()))) {
+                    termsToKeep.add(term.getCode());
                 }
             }
         }
@@ -208,15 +245,17 @@ public class ArchetypeDifferentiator {
             TermBindingSet termBindingSet = tbsIterator.next();
             for (Iterator<TermBindingItem> tbiIterator = termBindingSet.getItems().iterator(); tbiIterator.hasNext(); ) {
                 TermBindingItem termBindingItem = tbiIterator.next();
-                try {
-                    if (getSpecializationDepth(termBindingItem.getCode()) == archetypeSpecializationDepth) continue;
-                } catch (IllegalArgumentException e) {
+                int codeSpecializationDepth = scanSpecializationDepth(termBindingItem.getCode());
+                if (codeSpecializationDepth == NodeIdDifferentiator.INVALID_NODE_ID) {
+                    // binding of a path instead of a code
                     RmPath path = RmPath.valueOf(termBindingItem.getCode());
-                    if (getSpecializationDepth(path.getNodeId()) == archetypeSpecializationDepth) continue;
+                    codeSpecializationDepth = getSpecializationDepth(path.getNodeId());
                 }
+                if (codeSpecializationDepth == archetypeSpecializationDepth) continue;
                 if (Objects.equals(
                         termBindingItem.getValue(),
-                        flatParentWrapper.getTerminologyBinding(termBindingSet.getTerminology(), termBindingItem.getCode()))) {
+                        parentTermBindings.getOrDefault(termBindingSet.getTerminology(), Collections.emptyMap())
+                                .get(termBindingItem.getCode()))) {
                     tbiIterator.remove();
                 }
             }
@@ -349,7 +388,7 @@ public class ArchetypeDifferentiator {
     }
 
     private boolean isArchetypeSlotSpecialized(ArchetypeSlot flatParent, ArchetypeSlot cobj) {
-        return !Arrays.equals(SerializationUtils.serialize(flatParent), SerializationUtils.serialize(cobj));
+        return !StructuralEquality.isEqual(flatParent, cobj);
     }
 
     @Nullable
@@ -375,24 +414,27 @@ public class ArchetypeDifferentiator {
     @Nullable
     private CObject findCObject(CAttribute parentAttribute, String nodeId) {
         if (parentAttribute==null || nodeId==null) return null;
-        for (CObject cObject : parentAttribute.getChildren()) {
-            if (nodeId.equals(cObject.getNodeId())) {
-                return cObject;
+        return childrenByNodeId.computeIfAbsent(parentAttribute, a -> {
+            Map<String, CObject> result = new HashMap<>();
+            for (CObject cObject : a.getChildren()) {
+                if (cObject.getNodeId() != null) {
+                    result.putIfAbsent(cObject.getNodeId(), cObject);
+                }
             }
-        }
-        return null;
+            return result;
+        }).get(nodeId);
     }
 
     @Nullable
     private CAttribute findParentAttribute(CObject flatParent, String rmAttributeName) {
         if (!(flatParent instanceof CComplexObject)) return null;
-        CComplexObject p = (CComplexObject) flatParent;
-        for (CAttribute pa : p.getAttributes()) {
-            if (pa.getRmAttributeName().equals(rmAttributeName)) {
-                return pa;
+        return attributesByName.computeIfAbsent((CComplexObject) flatParent, p -> {
+            Map<String, CAttribute> result = new HashMap<>();
+            for (CAttribute pa : p.getAttributes()) {
+                result.putIfAbsent(pa.getRmAttributeName(), pa);
             }
-        }
-        return null;
+            return result;
+        }).get(rmAttributeName);
     }
 
     private boolean isAttributeSpecialized(CObject parentsParent, CAttribute parentAttribute, CAttribute attribute) {
@@ -20,40 +20,62 @@
 
 package org.openehr.designer.diff;
 
-import com.google.common.base.Joiner;
-
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
  * @author markopi
  */
 public class NodeIdDifferentiator {
-    private static final Pattern PREFIX_PATTER = Pattern.compile("([a-zA-Z]+)([\\d\\.]+)");
+    /**
+     * Returned by {@link #scanSpecializationDepth(String)} for strings that are not node ids.
+     */
+    public static final int INVALID_NODE_ID = -1;
 
+    /**
+     * @return specialization depth of the node id, such as 2 for id1.1
+     * @throws IllegalArgumentException if the string is not a node id
+     */
     public static int getSpecializationDepth(String nodeId) {
+        int result = scanSpecializationDepth(nodeId);
+        if (result == INVALID_NODE_ID) throw new IllegalArgumentException(nodeId);
+        return result;
+    }
+
+    /**
+     * Returns the specialization depth of a node id without allocating. A node id is a prefix of ascii letters
+     * followed by dot separated codes. Archetype ids have depth 0. Empty codes at the end are not counted, so id1.
+     * has depth 1.
+     *
+     * @return specialization depth, or {@link #INVALID_NODE_ID} if the string is not a node id
+     */
+    public static int scanSpecializationDepth(String nodeId) {
         if (nodeId.startsWith("openEHR-")) {
             return 0;
         }
-        return NodeId.parse(nodeId).codes.length;
-    }
-
-    private static class NodeId {
-        String prefix;
-        String[] codes;
-
-        public static NodeId parse(String nodeId) {
-            NodeId result = new NodeId();
-            Matcher m = PREFIX_PATTER.matcher(nodeId);
-            if (!m.matches()) throw new IllegalArgumentException(nodeId);
-            result.prefix = m.group(1);
-            result.codes = m.group(2).split("\\.");
-            return result;
+        int length = nodeId.length();
+        int i = 0;
+        while (i < length && isAsciiLetter(nodeId.charAt(i))) {
+            i++;
         }
+        if (i == 0 || i == length) return INVALID_NODE_ID;
 
-        @Override
-        public String toString() {
-            return prefix + Joiner.on(".").join(codes);
+        int codes = 1;
+        int trailingDots = 0;
+        boolean hasDigit = false;
+        for (; i < length; i++) {
+            char c = nodeId.charAt(i);
+            if (c == '.') {
+                codes++;
+                trailingDots++;
+            } else if (c >= '0' && c <= '9') {
+                trailingDots = 0;
+                hasDigit = true;
+            } else {
+                return INVALID_NODE_ID;
+            }
         }
+        return hasDigit ? codes - trailingDots : 0;
+    }
+
+    private static boolean isAsciiLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
     }
 }
@@ -0,0 +1,126 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.diff;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Deep equality of constraint object graphs, such as archetype slots and their assertions. Two graphs are equal if
+ * they have the same classes and their non-static, non-transient fields are equal, which is what comparing their
+ * java serialized forms would tell, but stops at the first difference without copying anything.
+ * <p>
+ * Types from the {@code java} and {@code javax} packages other than collections, maps and arrays are compared with
+ * {@link Object#equals(Object)}. Graphs must not contain cycles.
+ *
+ * @author markopi
+ */
+final class StructuralEquality {
+    private static final ClassValue<Field[]> FIELDS = new ClassValue<Field[]>() {
+        @Override
+        protected Field[] computeValue(Class<?> type) {
+            List<Field> result = new ArrayList<>();
+            for (Class<?> c = type; c != null && c != Object.class; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    int modifiers = field.getModifiers();
+                    if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) continue;
+                    field.setAccessible(true);
+                    result.add(field);
+                }
+            }
+            return result.toArray(new Field[result.size()]);
+        }
+    };
+
+    private StructuralEquality() {
+    }
+
+    static boolean isEqual(Object a, Object b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        Class<?> type = a.getClass();
+        if (type != b.getClass()) return false;
+
+        if (a instanceof Collection) {
+            return isEqual((Collection<?>) a, (Collection<?>) b);
+        }
+        if (a instanceof Map) {
+            return isEqual((Map<?, ?>) a, (Map<?, ?>) b);
+        }
+        if (type.isArray()) {
+            return isArrayEqual(a, b);
+        }
+        if (isValueType(type)) {
+            return a.equals(b);
+        }
+        try {
+            for (Field field : FIELDS.get(type)) {
+                if (!isEqual(field.get(a), field.get(b))) return false;
+            }
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+        return true;
+    }
+
+    private static boolean isEqual(Collection<?> a, Collection<?> b) {
+        if (a.size() != b.size()) return false;
+        Iterator<?> ai = a.iterator();
+        Iterator<?> bi = b.iterator();
+        while (ai.hasNext()) {
+            if (!isEqual(ai.next(), bi.next())) return false;
+        }
+        return true;
+    }
+
+    private static boolean isEqual(Map<?, ?> a, Map<?, ?> b) {
+        if (a.size() != b.size()) return false;
+        Iterator<? extends Map.Entry<?, ?>> ai = a.entrySet().iterator();
+        Iterator<? extends Map.Entry<?, ?>> bi = b.entrySet().iterator();
+        while (ai.hasNext()) {
+            Map.Entry<?, ?> ae = ai.next();
+            Map.Entry<?, ?> be = bi.next();
+            if (!isEqual(ae.getKey(), be.getKey()) || !isEqual(ae.getValue(), be.getValue())) return false;
+        }
+        return true;
+    }
+
+    private static boolean isArrayEqual(Object a, Object b) {
+        int length = Array.getLength(a);
+        if (length != Array.getLength(b)) return false;
+        for (int i = 0; i < length; i++) {
+            if (!isEqual(Array.get(a, i), Array.get(b, i))) return false;
+        }
+        return true;
+    }
+
+    private static boolean isValueType(Class<?> type) {
+        if (type.isPrimitive() || Enum.class.isAssignableFrom(type)) return true;
+        String name = type.getName();
+        return name.startsWith("java.") || name.startsWith("javax.");
+    }
+}
@@ -24,33 +24,79 @@ import org.openehr.adl.FlatArchetypeProvider;
 import org.openehr.adl.rm.RmModel;
 import org.openehr.jaxb.am.Archetype;
 
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
+ * Differentiates flat template archetypes. When constructed with a pool, overlays are differentiated in parallel.
+ * Either way flat parents shared between overlays are resolved only once, and the differential archetypes are returned
+ * in the order of the flat ones.
+ *
  * @author markopi
  */
 public class TemplateDifferentiator {
     private final FlatArchetypeProvider flatArchetypeProvider;
+    @Nullable
+    private final ForkJoinPool pool;
 
     public TemplateDifferentiator(FlatArchetypeProvider flatArchetypeProvider) {
+        this(flatArchetypeProvider, null);
+    }
+
+    public TemplateDifferentiator(FlatArchetypeProvider flatArchetypeProvider, @Nullable ForkJoinPool pool) {
         this.flatArchetypeProvider = flatArchetypeProvider;
+        this.pool = pool;
     }
 
     public List<Archetype> differentiate(RmModel rmModel, List<Archetype> flatTemplateArchetypes) {
+        // ArchetypeDifferentiator does not modify the flat parent, so overlays with the same parent can share it
+        ConcurrentMap<String, ForkJoinTask<Archetype>> flatParents = new ConcurrentHashMap<>();
         List<Archetype> result = new ArrayList<>();
-        for (Archetype flatArchetype : flatTemplateArchetypes) {
-            Archetype flatArchetypeParent = null;
-            if (flatArchetype.getParentArchetypeId() != null) {
-                flatArchetypeParent = flatArchetypeProvider.getFlatArchetype(flatArchetype.getParentArchetypeId().getValue());
+        if (pool == null || flatTemplateArchetypes.size() < 2) {
+            for (Archetype flatArchetype : flatTemplateArchetypes) {
+                result.add(differentiate(rmModel, flatArchetype, flatParents));
+            }
+        } else {
+            List<ForkJoinTask<Archetype>> tasks = new ArrayList<>();
+            for (Archetype flatArchetype : flatTemplateArchetypes) {
+                tasks.add(pool.submit(() -> differentiate(rmModel, flatArchetype, flatParents)));
+            }
+            try {
+                for (ForkJoinTask<Archetype> task : tasks) {
+                    result.add(task.join());
+                }
+            } catch (RuntimeException e) {
+                tasks.forEach(t -> t.cancel(false));
+                throw e;
             }
-            Archetype differentialArchetype = ArchetypeDifferentiator.differentiate(rmModel, flatArchetypeParent, flatArchetype);
-            result.add(differentialArchetype);
         }
 //        removeUnchangedArchetypes(result);
         return result;
     }
 
+    private Archetype differentiate(RmModel rmModel, Archetype flatArchetype,
+            ConcurrentMap<String, ForkJoinTask<Archetype>> flatParents) {
+        Archetype flatArchetypeParent = null;
+        if (flatArchetype.getParentArchetypeId() != null && flatArchetype.getParentArchetypeId().getValue() != null) {
+            flatArchetypeParent = getFlatParent(flatArchetype.getParentArchetypeId().getValue(), flatParents);
+        }
+        return ArchetypeDifferentiator.differentiate(rmModel, flatArchetypeParent, flatArchetype);
+    }
+
+    private Archetype getFlatParent(String parentArchetypeId, ConcurrentMap<String, ForkJoinTask<Archetype>> flatParents) {
+        ForkJoinTask<Archetype> task = ForkJoinTask.adapt(() -> flatArchetypeProvider.getFlatArchetype(parentArchetypeId));
+        ForkJoinTask<Archetype> existing = flatParents.putIfAbsent(parentArchetypeId, task);
+        if (existing != null) {
+            return existing.join();
+        }
+        return task.invoke();
+    }
+
 //    private void removeUnchangedArchetypes(List<DifferentialArchetype> archetypes) {
 //        int archetypeIndex = 0;
 //        while (archetypeIndex < archetypes.size()) {
@@ -21,28 +21,47 @@
 package org.openehr.designer.io;
 
 import com.google.common.base.Charsets;
-import com.google.common.base.Splitter;
-import com.google.common.io.CharStreams;
 import org.openehr.adl.parser.AdlDeserializer;
 import org.openehr.adl.parser.BomSupportingReader;
 import org.openehr.jaxb.am.Archetype;
 
+import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /**
+ * Reads templates in adlt format. Archetypes in an adlt are separated by a line of two or more dashes. The content is
+ * read as a stream and each archetype is parsed as soon as its text is complete, so only the archetype being read is
+ * held as text, along with at most a few archetypes waiting to be parsed when an executor is given.
+ *
  * @author Marko Pipan
  */
 public class TemplateDeserializer {
+    private static final ThreadLocal<AdlDeserializer> PARSER = ThreadLocal.withInitial(AdlDeserializer::new);
+    // archetypes waiting to be parsed while the stream is read, bounds memory to a few archetypes' text
+    private static final int MAX_PENDING = Runtime.getRuntime().availableProcessors();
+
     public static List<Archetype> deserialize(InputStream adltStream) throws IOException {
+        return deserialize(adltStream, null);
+    }
+
+    /**
+     * @param executor if not null, archetypes are parsed on this executor while the rest of the stream is read
+     */
+    public static List<Archetype> deserialize(InputStream adltStream, @Nullable Executor executor) throws IOException {
         try (Reader r = new BomSupportingReader(adltStream, Charsets.UTF_8)) {
-            String adltContents = CharStreams.toString(r);
-            return deserialize(adltContents);
+            return deserialize(r, executor);
         }
     }
 
@@ -56,13 +75,85 @@ public class TemplateDeserializer {
 
 
     public static List<Archetype> deserialize(String adltContent) {
-        Iterable<String> adls = Splitter.on(Pattern.compile("(\r|\n)+ *\\-{2,} *(\r|\n)+")).split(adltContent);
+        try {
+            return deserialize(new StringReader(adltContent), null);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
 
+    private static List<Archetype> deserialize(Reader adltReader, @Nullable Executor executor) throws IOException {
+        if (executor == null) {
+            List<Archetype> result = new ArrayList<>();
+            AdlDeserializer deserializer = new AdlDeserializer();
+            readArchetypeSources(adltReader, adl -> result.add(deserializer.parse(adl)));
+            return result;
+        }
+
+        Deque<CompletableFuture<Archetype>> pending = new ArrayDeque<>();
         List<Archetype> result = new ArrayList<>();
-        AdlDeserializer deserializer = new AdlDeserializer();
-        for (String adl : adls) {
-            result.add(deserializer.parse(adl));
+        try {
+            readArchetypeSources(adltReader, adl -> {
+                // reading waits for the oldest archetype when too many are waiting to be parsed
+                if (pending.size() >= MAX_PENDING) {
+                    result.add(pending.removeFirst().join());
+                }
+                pending.add(CompletableFuture.supplyAsync(() -> PARSER.get().parse(adl), executor));
+            });
+            while (!pending.isEmpty()) {
+                result.add(pending.removeFirst().join());
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            pending.forEach(f -> f.cancel(false));
         }
         return result;
     }
+
+    /**
+     * Splits adlt content into the sources of its archetypes. A separator is a line other than the first one, made of
+     * two or more dashes optionally surrounded by spaces and ended by a line break.
+     *
+     * @param target receives the source of each archetype as soon as it is read, in order
+     */
+    public static void readArchetypeSources(Reader adltReader, Consumer<String> target) throws IOException {
+        StringBuilder adl = new StringBuilder();
+        boolean firstLine = true;
+        int lineStart = 0;
+        char[] buffer = new char[8192];
+        int count;
+        while ((count = adltReader.read(buffer)) >= 0) {
+            for (int i = 0; i < count; i++) {
+                char c = buffer[i];
+                if (c != '\n' && c != '\r') {
+                    adl.append(c);
+                    continue;
+                }
+                if (!firstLine && isSeparator(adl, lineStart)) {
+                    adl.setLength(lineStart);
+                    target.accept(adl.toString());
+                    adl.setLength(0);
+                } else {
+                    adl.append(c);
+                }
+                firstLine = false;
+                lineStart = adl.length();
+            }
+        }
+        target.accept(adl.toString());
+    }
+
+    private static boolean isSeparator(CharSequence line, int start) {
+        int i = start;
+        while (i < line.length() && line.charAt(i) == ' ') i++;
+        int dashesStart = i;
+        while (i < line.length() && line.charAt(i) == '-') i++;
+        if (i - dashesStart < 2) return false;
+        while (i < line.length() && line.charAt(i) == ' ') i++;
+        return i == line.length();
+    }
 }
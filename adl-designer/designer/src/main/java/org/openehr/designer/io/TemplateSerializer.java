@@ -20,23 +20,92 @@
 
 package org.openehr.designer.io;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Joiner;
 import org.openehr.adl.serializer.ArchetypeSerializer;
 import org.openehr.jaxb.am.Archetype;
 
+import javax.annotation.Nullable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 /**
  * @author Marko Pipan
  */
 public class TemplateSerializer {
+    private static final String SEPARATOR = "\n---------------------------------------------------------------------------------\n";
+    // archetypes serialized ahead of the one being written, bounds memory to a few archetypes' text
+    private static final int MAX_PENDING = Runtime.getRuntime().availableProcessors();
+
     public static String serialize(List<Archetype> archetypes) {
         List<String> serializedArchetypes = new ArrayList<>();
         for (Archetype archetype : archetypes) {
             serializedArchetypes.add(ArchetypeSerializer.serialize(archetype));
         }
 
-        return Joiner.on("\n---------------------------------------------------------------------------------\n").join(serializedArchetypes);
+        return Joiner.on(SEPARATOR).join(serializedArchetypes);
+    }
+
+    /**
+     * Writes a template in adlt format as utf-8. The stream is flushed but not closed.
+     *
+     * @see #serialize(List, Writer, Executor)
+     */
+    public static void serialize(List<Archetype> archetypes, OutputStream out, @Nullable Executor executor)
+            throws IOException {
+        Writer w = new BufferedWriter(new OutputStreamWriter(out, Charsets.UTF_8));
+        serialize(archetypes, w, executor);
+        w.flush();
+    }
+
+    /**
+     * Writes a template in adlt format. Each archetype is written as soon as it and all archetypes before it are
+     * serialized, so only a few archetypes are held as text at a time.
+     *
+     * @param executor if not null, archetypes are serialized on this executor ahead of the one being written
+     */
+    public static void serialize(List<Archetype> archetypes, Writer out, @Nullable Executor executor)
+            throws IOException {
+        if (executor == null) {
+            for (int i = 0; i < archetypes.size(); i++) {
+                if (i > 0) out.write(SEPARATOR);
+                out.write(ArchetypeSerializer.serialize(archetypes.get(i)));
+            }
+            return;
+        }
+
+        Iterator<Archetype> remaining = archetypes.iterator();
+        Deque<CompletableFuture<String>> pending = new ArrayDeque<>();
+        boolean first = true;
+        try {
+            while (remaining.hasNext() || !pending.isEmpty()) {
+                while (remaining.hasNext() && pending.size() < MAX_PENDING) {
+                    Archetype archetype = remaining.next();
+                    pending.add(CompletableFuture.supplyAsync(() -> ArchetypeSerializer.serialize(archetype), executor));
+                }
+                String adl = pending.removeFirst().join();
+                if (!first) out.write(SEPARATOR);
+                out.write(adl);
+                first = false;
+            }
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        } finally {
+            pending.forEach(f -> f.cancel(false));
+        }
     }
 }
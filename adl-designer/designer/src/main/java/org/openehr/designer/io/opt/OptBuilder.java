@@ -20,36 +20,33 @@
 
 package org.openehr.designer.io.opt;
 
-import org.openehr.designer.repository.ArchetypeRepository;
+import org.openehr.designer.repository.FlatArchetypeRepository;
 import org.openehr.jaxb.am.Archetype;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.PostConstruct;
-import javax.annotation.Resource;
 import java.lang.reflect.Constructor;
 import java.util.List;
 
 /**
+ * Builds opt files from templates. The opt exporter is looked up once, in {@link #init()}; afterwards a single
+ * instance is thread safe and is shared by all repositories.
+ *
  * @author Marko Pipan
  */
 public class OptBuilder {
     private static final Logger LOG = LoggerFactory.getLogger(OptBuilder.class);
 
     private OptBuilderProxy proxy;
-    private ArchetypeRepository archetypeRepository;
-
-    public void setArchetypeRepository(ArchetypeRepository archetypeRepository) {
-        this.archetypeRepository = archetypeRepository;
-    }
 
     @PostConstruct
     public void init() {
 
         try {
-            Class cls = Class.forName("org.openehr.designer.io.opt.ActualOptBuilderProxy");
-            Constructor<OptBuilderProxy> constructor = cls.getConstructor(ArchetypeRepository.class);
-            proxy = constructor.newInstance(archetypeRepository);
+            Class<?> cls = Class.forName("org.openehr.designer.io.opt.ActualOptBuilderProxy");
+            Constructor<? extends OptBuilderProxy> constructor = cls.asSubclass(OptBuilderProxy.class).getConstructor();
+            proxy = constructor.newInstance();
         } catch (ClassNotFoundException e) {
             proxy = new OptBuilderProxy.DummyOptBuilderProxy();
         } catch (Exception e) {
@@ -58,14 +55,25 @@ public class OptBuilder {
         }
     }
 
-    public Opt build(List<Archetype> archetypes) {
-        return proxy.build(archetypes);
+    /**
+     * @param archetypeRepository provides flat forms of archetypes referenced by the template
+     * @param archetypes          differential template archetypes, template first
+     */
+    public Opt build(FlatArchetypeRepository archetypeRepository, List<Archetype> archetypes) {
+        return proxy.build(archetypeRepository, archetypes);
     }
 
     public boolean enabled() {
         return proxy.enabled();
     }
 
+    /**
+     * @return identifies the opt exporter, changes when the built opts could change
+     */
+    public String getVersion() {
+        return proxy.getVersion();
+    }
+
 
     public static class Opt {
         private final String templateId;
@@ -20,22 +20,56 @@
 
 package org.openehr.designer.io.opt;
 
+import org.openehr.adl.FlatArchetypeProvider;
 import org.openehr.jaxb.am.Archetype;
 
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
 import java.util.List;
 
 /**
  * @author Marko Pipan
  */
 abstract class OptBuilderProxy {
-    abstract OptBuilder.Opt build(List<Archetype> archetypes);
+    /**
+     * Called concurrently, for archetypes of any repository
+     */
+    abstract OptBuilder.Opt build(FlatArchetypeProvider archetypeProvider, List<Archetype> archetypes);
 
     abstract boolean enabled();
 
+    /**
+     * @return identifies the exporter that builds opts, changes when the built opts could change
+     */
+    abstract String getVersion();
+
+    /**
+     * @return implementation version of the class's package and the modification time of its class file, which
+     * changes when the class is replaced even if the package has no version
+     */
+    static String getVersion(Class<?> cls) {
+        Package p = cls.getPackage();
+        String implementationVersion = p != null ? p.getImplementationVersion() : null;
+        long lastModified = 0;
+        URL classFile = cls.getResource(cls.getSimpleName() + ".class");
+        if (classFile != null) {
+            try {
+                URLConnection connection = classFile.openConnection();
+                lastModified = connection.getLastModified();
+                // reading the headers opens the class file
+                connection.getInputStream().close();
+            } catch (IOException e) {
+                // version is then only as precise as the implementation version
+            }
+        }
+        return cls.getName() + "/" + implementationVersion + "/" + lastModified;
+    }
+
     static class DummyOptBuilderProxy extends OptBuilderProxy {
 
         @Override
-        OptBuilder.Opt build(List<Archetype> archetypes) {
+        OptBuilder.Opt build(FlatArchetypeProvider archetypeProvider, List<Archetype> archetypes) {
             throw new UnsupportedOperationException("Exporting to opt is not available");
         }
 
@@ -43,5 +77,10 @@ abstract class OptBuilderProxy {
         boolean enabled() {
             return false;
         }
+
+        @Override
+        String getVersion() {
+            return "disabled";
+        }
     }
 }
@@ -21,7 +21,12 @@
 package org.openehr.designer.repository;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.CharStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.SerializationUtils;
 import org.openehr.adl.am.ArchetypeIdInfo;
 import org.openehr.adl.parser.AdlDeserializer;
 import org.openehr.adl.parser.BomSupportingReader;
@@ -33,12 +38,23 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
@@ -50,10 +66,20 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 abstract public class AbstractFileBasedArchetypeRepository extends AbstractArchetypeRepository {
     public static final Logger LOG = LoggerFactory.getLogger(AbstractFileBasedArchetypeRepository.class);
+    public static final String INDEX_FILE_NAME = ".adl-designer-index.json";
+    public static final long DEFAULT_ARCHETYPE_CACHE_SIZE = 8 * 1024 * 1024;
 
     protected final AdlDeserializer deserializer = new AdlDeserializer();
 
-    private List<LocalArchetypeInfo> localArchetypeInfoList;
+    // immutable snapshot, replaced as a whole under updateLock so readers never see a partial update
+    private volatile ArchetypeIndex index = new ArchetypeIndex(Collections.emptyList());
+    private volatile RepositoryLoadProgress loadProgress = new RepositoryLoadProgress();
+    private final Object updateLock = new Object();
+    private int parseThreads = 1;
+    private boolean useIndexFile;
+    private long archetypeCacheSize = DEFAULT_ARCHETYPE_CACHE_SIZE;
+    // parsed differential archetypes by relative file path, weighed by adl source size
+    private volatile Cache<Path, CachedArchetype> archetypeCache = createArchetypeCache(DEFAULT_ARCHETYPE_CACHE_SIZE);
 
     private Function<Archetype, Path> newArchetypeFileLocationGenerator = (archetype) -> {
         ArchetypeIdInfo aidi = ArchetypeIdInfo.parse(archetype.getArchetypeId().getValue());
@@ -73,13 +99,12 @@ abstract public class AbstractFileBasedArchetypeRepository extends AbstractArche
 
     @Nullable
     protected LocalArchetypeInfo getLocalArchetypeInfo(String archetypeId) {
-        for (LocalArchetypeInfo localArchetypeInfo : localArchetypeInfoList) {
-            if (localArchetypeInfo.getInfo().getArchetypeId().equals(archetypeId)
-                    || localArchetypeInfo.getInterfaceArchetypeId().equals(archetypeId)) {
-                return localArchetypeInfo;
-            }
+        ArchetypeIndex current = index;
+        LocalArchetypeInfo result = current.byId.get(archetypeId);
+        if (result == null) {
+            result = current.byInterfaceId.get(archetypeId);
         }
-        return null;
+        return result;
     }
 
     protected abstract Path getRepositoryLocation();
@@ -92,39 +117,268 @@ abstract public class AbstractFileBasedArchetypeRepository extends AbstractArche
         this.newArchetypeFileLocationGenerator = newArchetypeFileLocationGenerator;
     }
 
+    public int getParseThreads() {
+        return parseThreads;
+    }
+
+    /**
+     * Sets the number of threads used to parse archetypes when the repository is first read. With a value of 1
+     * (default) the archetypes are parsed serially on the calling thread.
+     *
+     * @param parseThreads maximum number of parser threads, must be at least 1
+     */
+    public void setParseThreads(int parseThreads) {
+        checkArgument(parseThreads > 0, "parseThreads: must be at least 1");
+        this.parseThreads = parseThreads;
+    }
+
+    public boolean isUseIndexFile() {
+        return useIndexFile;
+    }
+
+    /**
+     * Sets whether archetype metadata is persisted in an index file, by default inside the repository directory. When
+     * enabled, only archetype files that were added or changed since the index was written are parsed when the
+     * repository is opened. Disabled by default.
+     */
+    public void setUseIndexFile(boolean useIndexFile) {
+        this.useIndexFile = useIndexFile;
+    }
+
+    public long getArchetypeCacheSize() {
+        return archetypeCacheSize;
+    }
+
+    /**
+     * Sets the maximum total size in bytes of adl sources whose parsed archetypes are kept in memory. A value of 0
+     * disables the cache. Any currently cached archetypes are discarded.
+     */
+    public void setArchetypeCacheSize(long archetypeCacheSize) {
+        checkArgument(archetypeCacheSize >= 0, "archetypeCacheSize: must not be negative");
+        this.archetypeCacheSize = archetypeCacheSize;
+        archetypeCache = createArchetypeCache(archetypeCacheSize);
+    }
+
+    private static Cache<Path, CachedArchetype> createArchetypeCache(long maximumWeight) {
+        return CacheBuilder.newBuilder()
+                .maximumWeight(maximumWeight)
+                .weigher((Path path, CachedArchetype cached) -> (int) Math.min(cached.size, Integer.MAX_VALUE))
+                .build();
+    }
+
+    protected Path getIndexFileLocation() {
+        return getRepositoryLocation().resolve(INDEX_FILE_NAME);
+    }
+
     protected void parseRepository() throws IOException {
-        localArchetypeInfoList = parseRepositoryArchetypes();
+        RepositoryLoadProgress progress = new RepositoryLoadProgress();
+        loadProgress = progress;
+        try {
+            List<LocalArchetypeInfo> infos = parseRepositoryArchetypes(progress);
+            synchronized (updateLock) {
+                index = new ArchetypeIndex(infos);
+                archetypeCache.invalidateAll();
+            }
+            progress.ready();
+        } catch (IOException | RuntimeException e) {
+            progress.failed(e);
+            throw e;
+        }
     }
 
-    private List<LocalArchetypeInfo> parseRepositoryArchetypes() throws IOException {
-        List<LocalArchetypeInfo> result = new ArrayList<>();
+    /**
+     * @return progress of the last full parse of the repository. Archetypes become available when it is complete
+     */
+    public RepositoryLoadProgress getLoadProgress() {
+        return loadProgress;
+    }
+
+    /**
+     * Re-reads archetype files that were created, modified or deleted outside of this repository. Files that no
+     * longer exist or can no longer be parsed are removed from the repository.
+     *
+     * @param adlFiles changed archetype files, relative to the repository location
+     */
+    protected void reloadArchetypeFiles(Collection<Path> adlFiles) {
+        Path repositoryPath = getRepositoryLocation();
+        // null value marks a removed archetype
+        Map<Path, LocalArchetypeInfo> changed = new LinkedHashMap<>();
+        List<Path> existingFiles = new ArrayList<>();
+        for (Path adlFile : adlFiles) {
+            Path absolutePath = repositoryPath.resolve(adlFile);
+            if (Files.isRegularFile(absolutePath)) {
+                existingFiles.add(absolutePath);
+            }
+            changed.put(adlFile, null);
+        }
+        List<LocalArchetypeInfo> parsed = parseArchetypeFiles(repositoryPath, existingFiles, null);
+        for (int i = 0; i < parsed.size(); i++) {
+            changed.put(repositoryPath.relativize(existingFiles.get(i)), parsed.get(i));
+        }
+
+        synchronized (updateLock) {
+            List<LocalArchetypeInfo> newList = new ArrayList<>();
+            for (LocalArchetypeInfo info : index.list) {
+                if (changed.containsKey(info.getPath())) {
+                    LocalArchetypeInfo replacement = changed.remove(info.getPath());
+                    if (replacement != null) {
+                        newList.add(replacement);
+                    }
+                } else {
+                    newList.add(info);
+                }
+            }
+            changed.values().stream().filter(Objects::nonNull).forEach(newList::add);
+            index = new ArchetypeIndex(newList);
+            archetypeCache.invalidateAll(adlFiles);
+        }
+        LOG.info("Reloaded {} changed archetype files", adlFiles.size());
+    }
+
+    private List<LocalArchetypeInfo> parseRepositoryArchetypes(RepositoryLoadProgress progress) throws IOException {
         List<Path> adlFiles = new ArrayList<>();
         Path repositoryPath = getRepositoryLocation();
         addAdlFilesRecursively(adlFiles, repositoryPath);
+        progress.addFilesScanned(adlFiles.size());
+
+        Map<String, ArchetypeIndexFile.Entry> indexedEntries = useIndexFile
+                ? ArchetypeIndexFile.read(getIndexFileLocation())
+                : new HashMap<>();
+
+        List<ArchetypeIndexFile.Entry> entries = new ArrayList<>();
+        List<Path> changedFiles = new ArrayList<>();
+        List<ArchetypeIndexFile.Entry> changedEntries = new ArrayList<>();
         for (Path adlFile : adlFiles) {
-            Path relativeArchetypePath = repositoryPath.relativize(adlFile);
-            try {
-                LOG.info("Parsing archetype file " + relativeArchetypePath);
-                String adlContent = readArchetype(adlFile);
-                Archetype archetype = deserializer.parse(adlContent);
-
-                LocalArchetypeInfo info = createLocalArchetypeInfo(relativeArchetypePath, archetype);
-
-                result.add(info);
-//                sourceArchetypes.put(info.getArchetypeId(), archetype);
-//                sourceArchetypes.put(interfaceArchetypeId, archetype);
-            } catch (Exception e) {
-                LOG.error("Error parsing archetype from file " + relativeArchetypePath + ". Archetype will be ignored", e);
+            ArchetypeIndexFile.Entry entry = ArchetypeIndexFile.Entry.forFile(repositoryPath.relativize(adlFile),
+                    Files.readAttributes(adlFile, BasicFileAttributes.class));
+            ArchetypeIndexFile.Entry indexed = indexedEntries.get(entry.path);
+            if (entry.isSameFile(indexed)) {
+                entry = indexed;
+                if (entry.isValid()) {
+                    progress.fileIndexed();
+                } else {
+                    progress.fileFailed();
+                }
+            } else {
+                changedFiles.add(adlFile);
+                changedEntries.add(entry);
             }
+            entries.add(entry);
+        }
+        if (useIndexFile) {
+            LOG.info("Archetype index has {} of {} archetype files up to date", adlFiles.size() - changedFiles.size(),
+                    adlFiles.size());
+        }
+
+        List<LocalArchetypeInfo> parsed = parseArchetypeFiles(repositoryPath, changedFiles, progress);
+        for (int i = 0; i < parsed.size(); i++) {
+            updateIndexEntry(changedEntries.get(i), parsed.get(i));
+        }
+        if (useIndexFile && (!changedFiles.isEmpty() || entries.size() != indexedEntries.size())) {
+            ArchetypeIndexFile.write(getIndexFileLocation(), entries);
+        }
+
+        return entries.stream()
+                .filter(ArchetypeIndexFile.Entry::isValid)
+                .map(this::createLocalArchetypeInfo)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Parses the given archetype files, serially or in parallel depending on {@link #getParseThreads()}.
+     *
+     * @param progress receives the outcome of each parsed file, if not null
+     * @return parsed archetype info for each file, in the same order as the files. Contains null for each file that
+     * could not be parsed
+     */
+    private List<LocalArchetypeInfo> parseArchetypeFiles(Path repositoryPath, List<Path> adlFiles,
+                                                         @Nullable RepositoryLoadProgress progress) {
+        if (parseThreads > 1 && adlFiles.size() > 1) {
+            return parseArchetypeFilesInParallel(repositoryPath, adlFiles, progress);
+        }
+
+        List<LocalArchetypeInfo> result = new ArrayList<>();
+        for (Path adlFile : adlFiles) {
+            result.add(parseArchetypeFile(deserializer, repositoryPath, adlFile, progress));
         }
         return result;
     }
 
-    private String readArchetype(Path adlFile) {
+    /**
+     * Parses archetype files on a bounded pool. Each worker thread uses its own deserializer. Results are collected
+     * in the order of the files, so the resulting list is the same as with serial parsing.
+     */
+    private List<LocalArchetypeInfo> parseArchetypeFilesInParallel(Path repositoryPath, List<Path> adlFiles,
+                                                                   @Nullable RepositoryLoadProgress progress) {
+        int threads = Math.min(parseThreads, adlFiles.size());
+        LOG.info("Parsing {} archetype files using {} threads", adlFiles.size(), threads);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("archetype-parser-%d")
+                .setDaemon(true)
+                .build());
+        ThreadLocal<AdlDeserializer> threadDeserializer = ThreadLocal.withInitial(AdlDeserializer::new);
         try {
-            return CharStreams.toString(new BomSupportingReader(
-                    Files.newInputStream(adlFile),
-                    Charsets.UTF_8));
+            List<Future<LocalArchetypeInfo>> futures = new ArrayList<>();
+            for (Path adlFile : adlFiles) {
+                futures.add(executor.submit(
+                        () -> parseArchetypeFile(threadDeserializer.get(), repositoryPath, adlFile, progress)));
+            }
+            List<LocalArchetypeInfo> result = new ArrayList<>();
+            for (Future<LocalArchetypeInfo> future : futures) {
+                result.add(Futures.getUnchecked(future));
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private void updateIndexEntry(ArchetypeIndexFile.Entry entry, @Nullable LocalArchetypeInfo info) {
+        if (info == null) {
+            entry.archetypeId = null; // marks a file that could not be parsed
+            return;
+        }
+        entry.archetypeId = info.getInfo().getArchetypeId();
+        entry.interfaceArchetypeId = info.getInterfaceArchetypeId();
+        entry.rmType = info.getInfo().getRmType();
+        entry.name = info.getInfo().getName();
+        entry.languages = info.getInfo().getLanguages();
+    }
+
+    private LocalArchetypeInfo createLocalArchetypeInfo(ArchetypeIndexFile.Entry entry) {
+        ArchetypeInfo info = new ArchetypeInfo(entry.archetypeId, entry.rmType, entry.name);
+        info.setLanguages(entry.languages);
+
+        LocalArchetypeInfo result = new LocalArchetypeInfo();
+        result.setInfo(info);
+        result.setInterfaceArchetypeId(entry.interfaceArchetypeId);
+        result.setPath(Paths.get(entry.path));
+        return result;
+    }
+
+    @Nullable
+    private LocalArchetypeInfo parseArchetypeFile(AdlDeserializer deserializer, Path repositoryPath, Path adlFile,
+                                                  @Nullable RepositoryLoadProgress progress) {
+        Path relativeArchetypePath = repositoryPath.relativize(adlFile);
+        try {
+            LOG.info("Parsing archetype file " + relativeArchetypePath);
+            String adlContent = readArchetype(adlFile);
+            Archetype archetype = deserializer.parse(adlContent);
+
+            LocalArchetypeInfo result = createLocalArchetypeInfo(relativeArchetypePath, archetype);
+            if (progress != null) progress.fileParsed();
+            return result;
+        } catch (Exception e) {
+            LOG.error("Error parsing archetype from file " + relativeArchetypePath + ". Archetype will be ignored", e);
+            if (progress != null) progress.fileFailed();
+            return null;
+        }
+    }
+
+    private String readArchetype(Path adlFile) {
+        try (Reader reader = new BomSupportingReader(Files.newInputStream(adlFile), Charsets.UTF_8)) {
+            return CharStreams.toString(reader);
         } catch (IOException e) {
             throw new RepositoryException("Could not read archetype from file " + adlFile, e);
         }
@@ -159,31 +413,42 @@ abstract public class AbstractFileBasedArchetypeRepository extends AbstractArche
     }
 
     protected LocalArchetypeInfo addArchetype(Archetype archetype, String adl) throws IOException {
-        final Path archetypePath = getArchetypeFileLocation(null, archetype);
-        LOG.info("Saving new archetype in file {}", archetypePath);
+        synchronized (updateLock) {
+            final Path archetypePath = getArchetypeFileLocation(null, archetype);
+            LOG.info("Saving new archetype in file {}", archetypePath);
 
-        LocalArchetypeInfo localArchetypeInfo = createLocalArchetypeInfo(archetypePath, archetype);
-        localArchetypeInfoList.add(localArchetypeInfo);
+            LocalArchetypeInfo localArchetypeInfo = createLocalArchetypeInfo(archetypePath, archetype);
 
-        Path absolutePath = getRepositoryLocation().resolve(archetypePath);
-        Files.createDirectories(absolutePath.getParent());
+            Path absolutePath = getRepositoryLocation().resolve(archetypePath);
+            Files.createDirectories(absolutePath.getParent());
+            Files.write(absolutePath, adl.getBytes(Charsets.UTF_8));
+            archetypeCache.invalidate(archetypePath);
 
-        Files.write(absolutePath, adl.getBytes(Charsets.UTF_8));
-        return localArchetypeInfo;
+            List<LocalArchetypeInfo> newList = new ArrayList<>(index.list);
+            newList.add(localArchetypeInfo);
+            index = new ArchetypeIndex(newList);
+            return localArchetypeInfo;
+        }
     }
 
     protected LocalArchetypeInfo updateArchetype(Archetype archetype, String adl) throws IOException {
-        LocalArchetypeInfo existingArchetypeInfo = getLocalArchetypeInfo(archetype.getArchetypeId().getValue());
-        checkNotNull(existingArchetypeInfo, "Archetype does not exist");
-        LOG.info("Updating archetype in file {}", existingArchetypeInfo.getPath());
-
-        LocalArchetypeInfo newLocalArchetypeInfo = createLocalArchetypeInfo(existingArchetypeInfo.getPath(), archetype);
-        int archetypeInfoIndex = WtUtils.indexOf(localArchetypeInfoList, (t) -> t == existingArchetypeInfo);
-        localArchetypeInfoList.set(archetypeInfoIndex, newLocalArchetypeInfo);
-
-        final Path archetypePath = getRepositoryLocation().resolve(newLocalArchetypeInfo.getPath());
-        Files.write(getRepositoryLocation().resolve(archetypePath), adl.getBytes(Charsets.UTF_8));
-        return newLocalArchetypeInfo;
+        synchronized (updateLock) {
+            LocalArchetypeInfo existingArchetypeInfo = getLocalArchetypeInfo(archetype.getArchetypeId().getValue());
+            checkNotNull(existingArchetypeInfo, "Archetype does not exist");
+            LOG.info("Updating archetype in file {}", existingArchetypeInfo.getPath());
+
+            LocalArchetypeInfo newLocalArchetypeInfo = createLocalArchetypeInfo(existingArchetypeInfo.getPath(), archetype);
+
+            final Path archetypePath = getRepositoryLocation().resolve(newLocalArchetypeInfo.getPath());
+            Files.write(archetypePath, adl.getBytes(Charsets.UTF_8));
+            archetypeCache.invalidate(newLocalArchetypeInfo.getPath());
+
+            List<LocalArchetypeInfo> newList = new ArrayList<>(index.list);
+            int archetypeInfoIndex = WtUtils.indexOf(newList, (t) -> t == existingArchetypeInfo);
+            newList.set(archetypeInfoIndex, newLocalArchetypeInfo);
+            index = new ArchetypeIndex(newList);
+            return newLocalArchetypeInfo;
+        }
     }
 
 
@@ -191,14 +456,17 @@ abstract public class AbstractFileBasedArchetypeRepository extends AbstractArche
         checkArgument(archetype.isIsDifferential(), "Must be a differential archetype");
         String adl = ArchetypeSerializer.serialize(archetype);
 
-        archetype = deserializer.parse(adl); // checks if the serialization is readable
-        LocalArchetypeInfo localArchetypeInfo = getLocalArchetypeInfo(archetype.getArchetypeId().getValue());
+        // checks if the serialization is readable
+        SaveValidationPolicy.getDefault().validate(SaveValidationPolicy.Kind.ARCHETYPE, adl, deserializer::parse);
         try {
-            //ArchetypeInfo info = createArchetypeInfo(archetype);
-            if (localArchetypeInfo == null) {
-                return addArchetype(archetype, adl);
-            } else {
-                return updateArchetype(archetype, adl);
+            // decide between add and update under the lock, so concurrent saves of a new archetype do not both add it
+            synchronized (updateLock) {
+                LocalArchetypeInfo localArchetypeInfo = getLocalArchetypeInfo(archetype.getArchetypeId().getValue());
+                if (localArchetypeInfo == null) {
+                    return addArchetype(archetype, adl);
+                } else {
+                    return updateArchetype(archetype, adl);
+                }
             }
         } catch (RepositoryException e) {
             throw e;
@@ -213,17 +481,82 @@ abstract public class AbstractFileBasedArchetypeRepository extends AbstractArche
         if (localArchetypeInfo == null) {
             throw new ArtifactNotFoundException(archetypeId);
         }
-        String adl = readArchetype(getRepositoryLocation().resolve(localArchetypeInfo.getPath()));
-        return deserializer.parse(adl);
+        Path path = localArchetypeInfo.getPath();
+        Path file = getRepositoryLocation().resolve(path);
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (IOException e) {
+            throw new RepositoryException("Could not read archetype file " + file, e);
+        }
+
+        Cache<Path, CachedArchetype> cache = archetypeCache;
+        CachedArchetype cached = cache.getIfPresent(path);
+        if (cached == null || !cached.isSameFile(attributes)) {
+            // attributes are taken before reading, so a concurrent write is at worst parsed again on next load
+            Archetype archetype = deserializer.parse(readArchetype(file));
+            cached = new CachedArchetype(attributes, archetype);
+            cache.put(path, cached);
+        }
+        return (Archetype) SerializationUtils.clone(cached.archetype);
     }
 
 
+    @Override
+    public String getArchetypeVersion(String archetypeId) {
+        LocalArchetypeInfo localArchetypeInfo = getLocalArchetypeInfo(archetypeId);
+        if (localArchetypeInfo == null) {
+            return null;
+        }
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(
+                    getRepositoryLocation().resolve(localArchetypeInfo.getPath()), BasicFileAttributes.class);
+            return attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
     @Override
     public List<ArchetypeInfo> getArchetypeInfos() {
-        return localArchetypeInfoList.stream().map(LocalArchetypeInfo::getInfo)
+        return index.list.stream().map(LocalArchetypeInfo::getInfo)
                 .collect(Collectors.toList());
     }
 
+    /**
+     * Archetypes in repository order, with lookups by full and interface archetype id. When several archetypes share
+     * an id, the first one wins.
+     */
+    private static class ArchetypeIndex {
+        final List<LocalArchetypeInfo> list;
+        final Map<String, LocalArchetypeInfo> byId = new HashMap<>();
+        final Map<String, LocalArchetypeInfo> byInterfaceId = new HashMap<>();
+
+        ArchetypeIndex(List<LocalArchetypeInfo> infos) {
+            this.list = Collections.unmodifiableList(new ArrayList<>(infos));
+            for (LocalArchetypeInfo info : list) {
+                byId.putIfAbsent(info.getInfo().getArchetypeId(), info);
+                byInterfaceId.putIfAbsent(info.getInterfaceArchetypeId(), info);
+            }
+        }
+    }
+
+    private static class CachedArchetype {
+        final long size;
+        final long lastModified;
+        final Archetype archetype;
+
+        CachedArchetype(BasicFileAttributes attributes, Archetype archetype) {
+            this.size = attributes.size();
+            this.lastModified = attributes.lastModifiedTime().toMillis();
+            this.archetype = archetype;
+        }
+
+        boolean isSameFile(BasicFileAttributes attributes) {
+            return size == attributes.size() && lastModified == attributes.lastModifiedTime().toMillis();
+        }
+    }
+
     protected static class LocalArchetypeInfo {
         private Path path;
         private String interfaceArchetypeId;
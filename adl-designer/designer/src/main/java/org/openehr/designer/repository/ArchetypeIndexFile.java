@@ -0,0 +1,140 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persisted summary of the archetypes in a file based repository. Each entry holds the data needed to build
+ * {@link ArchetypeInfo} together with the size and modification time of the file it was read from, so that
+ * unchanged files do not need to be parsed again when the repository is opened.
+ *
+ * @author markopi
+ */
+class ArchetypeIndexFile {
+    private static final Logger LOG = LoggerFactory.getLogger(ArchetypeIndexFile.class);
+    private static final int CURRENT_VERSION = 1;
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES)
+            .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+
+    @JsonProperty
+    int version = CURRENT_VERSION;
+    @JsonProperty
+    List<Entry> archetypes = new ArrayList<>();
+
+    /**
+     * Reads the index file.
+     *
+     * @param file location of the index file
+     * @return entries of the index by their path, or an empty map if the file does not exist or cannot be used
+     */
+    static Map<String, Entry> read(Path file) {
+        Map<String, Entry> result = new LinkedHashMap<>();
+        if (!Files.isRegularFile(file)) return result;
+        try {
+            ArchetypeIndexFile index = objectMapper.readValue(file.toFile(), ArchetypeIndexFile.class);
+            if (index.version != CURRENT_VERSION) {
+                LOG.info("Ignoring archetype index {} with version {}", file, index.version);
+                return result;
+            }
+            for (Entry entry : index.archetypes) {
+                result.put(entry.path, entry);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read archetype index " + file + ". Archetypes will be parsed", e);
+        }
+        return result;
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it in place, so that a reader never sees a partial index.
+     */
+    static void write(Path file, List<Entry> entries) {
+        ArchetypeIndexFile index = new ArchetypeIndexFile();
+        index.archetypes = entries;
+        try {
+            Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+            objectMapper.writerWithDefaultPrettyPrinter().writeValue(tempFile.toFile(), index);
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.warn("Could not write archetype index " + file, e);
+        }
+    }
+
+    static String toIndexPath(Path relativePath) {
+        return relativePath.toString().replace(File.separatorChar, '/');
+    }
+
+    static class Entry {
+        @JsonProperty
+        String path;
+        @JsonProperty
+        long size;
+        @JsonProperty
+        long lastModified;
+        @JsonProperty
+        String archetypeId;
+        @JsonProperty
+        String interfaceArchetypeId;
+        @JsonProperty
+        String rmType;
+        @JsonProperty
+        String name;
+        @JsonProperty
+        List<String> languages;
+
+        static Entry forFile(Path relativePath, BasicFileAttributes attributes) {
+            Entry result = new Entry();
+            result.path = toIndexPath(relativePath);
+            result.size = attributes.size();
+            result.lastModified = attributes.lastModifiedTime().toMillis();
+            return result;
+        }
+
+        boolean isSameFile(Entry other) {
+            return other != null && size == other.size && lastModified == other.lastModified;
+        }
+
+        /**
+         * @return true if the file contained a readable archetype
+         */
+        boolean isValid() {
+            return archetypeId != null;
+        }
+    }
+}
@@ -23,9 +23,14 @@ package org.openehr.designer.repository;
 import org.openehr.adl.ArchetypeProvider;
 import org.openehr.jaxb.am.Archetype;
 
+import javax.annotation.Nullable;
 import java.util.List;
 
 /**
+ * Archetypes returned by a repository, and flat archetypes derived from them by {@link FlatArchetypeRepository},
+ * are copies owned by the caller. Callers are free to modify them; implementations that cache archetypes must not
+ * return the cached instances.
+ *
  * @author Marko Pipan
  */
 public interface ArchetypeRepository extends ArchetypeProvider {
@@ -36,4 +41,23 @@ public interface ArchetypeRepository extends ArchetypeProvider {
 
     List<ArchetypeInfo> getArchetypeInfos();
 
+    /**
+     * Returns a stamp that changes whenever the differential archetype changes. Used to validate data derived from
+     * the archetype, such as flat archetypes.
+     *
+     * @return archetype version, or null if the repository cannot tell
+     */
+    @Nullable
+    default String getArchetypeVersion(String archetypeId) {
+        return null;
+    }
+
+    /**
+     * @return true if archetype versions are derived from archetype content, so that an archetype with the same
+     * version in this repository always has the same content, even across restarts
+     */
+    default boolean isArchetypeVersionContentDerived() {
+        return false;
+    }
+
 }
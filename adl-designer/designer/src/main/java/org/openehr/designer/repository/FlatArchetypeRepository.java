@@ -20,35 +20,147 @@
 
 package org.openehr.designer.repository;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.apache.commons.lang.SerializationUtils;
 import org.openehr.adl.FlatArchetypeProvider;
 import org.openehr.adl.flattener.ArchetypeFlattener;
 import org.openehr.adl.rm.RmModel;
+import org.openehr.designer.util.CachedLockProvider;
+import org.openehr.designer.util.LockProvider;
 import org.openehr.jaxb.am.Archetype;
 
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
 /**
+ * Flattens archetypes from a repository. Flat archetypes are cached for as long as the versions of all differential
+ * archetypes in their specialization chain stay the same, as reported by
+ * {@link ArchetypeRepository#getArchetypeVersion(String)}. Instances are thread safe and meant to be shared.
+ *
  * @author markopi
  */
 public class FlatArchetypeRepository implements FlatArchetypeProvider {
-    private ArchetypeRepository repository;
-    private final org.openehr.adl.flattener.ArchetypeFlattener flattener;
+    private static final int MAX_CACHED_ARCHETYPES = 500;
 
-    public FlatArchetypeRepository(ArchetypeRepository repository, RmModel rmModel) {
+    private final ArchetypeRepository repository;
+    private final Cache<String, CachedFlatArchetype> cache = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_ARCHETYPES)
+            .build();
+    // concurrent requests for the same archetype wait for a single flatten
+    private final LockProvider<String> flattenLocks = new CachedLockProvider<>();
+
+    public FlatArchetypeRepository(ArchetypeRepository repository) {
         this.repository = repository;
-        this.flattener = new ArchetypeFlattener();
+    }
+
+    public FlatArchetypeRepository(ArchetypeRepository repository, RmModel rmModel) {
+        this(repository);
     }
 
     @Override
     public Archetype getFlatArchetype(String archetypeId) {
-        Archetype source = getDifferentialArchetype(archetypeId);
-        Archetype parent = null;
-        if (source.getParentArchetypeId() != null && source.getParentArchetypeId().getValue() != null) {
-            parent = getFlatArchetype(source.getParentArchetypeId().getValue());
-        }
-        return flattener.flatten(parent, source);
+        return (Archetype) SerializationUtils.clone(getCachedFlatArchetype(archetypeId).archetype);
     }
 
     @Override
     public Archetype getDifferentialArchetype(String archetypeId) {
         return repository.getDifferentialArchetype(archetypeId);
     }
+
+    /**
+     * Returns a stamp that changes whenever the flat form of an archetype changes, that is whenever any differential
+     * archetype in its specialization chain changes. Flattens the archetype if it is not cached.
+     *
+     * @return flat archetype version, or null if the repository cannot tell
+     */
+    @Nullable
+    public String getFlatArchetypeVersion(String archetypeId) {
+        return getCachedFlatArchetype(archetypeId).getVersion();
+    }
+
+    /**
+     * @see ArchetypeRepository#isArchetypeVersionContentDerived()
+     */
+    public boolean isArchetypeVersionContentDerived() {
+        return repository.isArchetypeVersionContentDerived();
+    }
+
+    private CachedFlatArchetype getCachedFlatArchetype(String archetypeId) {
+        CachedFlatArchetype cached = cache.getIfPresent(archetypeId);
+        if (cached != null && cached.isCurrent(repository)) {
+            return cached;
+        }
+        return flattenLocks.with(archetypeId, () -> {
+            CachedFlatArchetype result = cache.getIfPresent(archetypeId);
+            if (result != null && result.isCurrent(repository)) {
+                return result;
+            }
+            result = flatten(archetypeId);
+            if (result.isCacheable()) {
+                cache.put(archetypeId, result);
+            } else {
+                cache.invalidate(archetypeId);
+            }
+            return result;
+        });
+    }
+
+    private CachedFlatArchetype flatten(String archetypeId) {
+        // version is read before the archetype, so a concurrent save at worst causes an unneeded flatten later
+        String version = repository.getArchetypeVersion(archetypeId);
+        Archetype source = getDifferentialArchetype(archetypeId);
+        CachedFlatArchetype parent = null;
+        if (source.getParentArchetypeId() != null && source.getParentArchetypeId().getValue() != null) {
+            parent = getCachedFlatArchetype(source.getParentArchetypeId().getValue());
+        }
+        // the cached parent must stay untouched by the flattener
+        Archetype flatParent = parent != null ? (Archetype) SerializationUtils.clone(parent.archetype) : null;
+        Archetype flat = new ArchetypeFlattener().flatten(flatParent, source);
+        return new CachedFlatArchetype(flat, archetypeId, version, parent);
+    }
+
+    private static class CachedFlatArchetype {
+        final Archetype archetype;
+        // ids and versions of the differential archetypes this flat archetype was built from, starting with itself
+        final List<String> chainIds = new ArrayList<>();
+        final List<String> chainVersions = new ArrayList<>();
+
+        CachedFlatArchetype(Archetype archetype, String archetypeId, @Nullable String version,
+                @Nullable CachedFlatArchetype parent) {
+            this.archetype = archetype;
+            chainIds.add(archetypeId);
+            chainVersions.add(version);
+            if (parent != null) {
+                chainIds.addAll(parent.chainIds);
+                chainVersions.addAll(parent.chainVersions);
+            }
+        }
+
+        boolean isCacheable() {
+            return !chainVersions.contains(null);
+        }
+
+        @Nullable
+        String getVersion() {
+            if (!isCacheable()) return null;
+            StringBuilder result = new StringBuilder();
+            for (int i = 0; i < chainIds.size(); i++) {
+                if (i > 0) result.append(',');
+                result.append(chainIds.get(i)).append('@').append(chainVersions.get(i));
+            }
+            return result.toString();
+        }
+
+        boolean isCurrent(ArchetypeRepository repository) {
+            for (int i = 0; i < chainIds.size(); i++) {
+                if (!Objects.equals(chainVersions.get(i), repository.getArchetypeVersion(chainIds.get(i)))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
@@ -0,0 +1,110 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Progress of loading a repository in the background. Counters are updated by the loading threads and may be read
+ * at any time.
+ *
+ * @author markopi
+ */
+public class RepositoryLoadProgress {
+    private volatile State state = State.LOADING;
+    private volatile String error;
+    private final AtomicInteger filesScanned = new AtomicInteger();
+    private final AtomicInteger filesParsed = new AtomicInteger();
+    private final AtomicInteger filesIndexed = new AtomicInteger();
+    private final AtomicInteger filesFailed = new AtomicInteger();
+
+    public void addFilesScanned(int count) {
+        filesScanned.addAndGet(count);
+    }
+
+    public void fileParsed() {
+        filesParsed.incrementAndGet();
+    }
+
+    /**
+     * Records a file whose contents were taken from up to date metadata, without parsing it.
+     */
+    public void fileIndexed() {
+        filesIndexed.incrementAndGet();
+        filesParsed.incrementAndGet();
+    }
+
+    public void fileFailed() {
+        filesFailed.incrementAndGet();
+    }
+
+    public void ready() {
+        state = State.READY;
+    }
+
+    public void failed(Throwable e) {
+        error = e.getMessage() != null ? e.getMessage() : e.toString();
+        state = State.FAILED;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return error that stopped loading, or null if loading did not fail
+     */
+    public String getError() {
+        return error;
+    }
+
+    /**
+     * @return number of files found in the repository so far
+     */
+    public int getFilesScanned() {
+        return filesScanned.get();
+    }
+
+    /**
+     * @return number of files whose contents are available, either parsed or taken from up to date metadata
+     */
+    public int getFilesParsed() {
+        return filesParsed.get();
+    }
+
+    /**
+     * @return number of available files that were taken from up to date metadata, without parsing
+     */
+    public int getFilesIndexed() {
+        return filesIndexed.get();
+    }
+
+    /**
+     * @return number of files that could not be parsed
+     */
+    public int getFilesFailed() {
+        return filesFailed.get();
+    }
+
+    public enum State {
+        LOADING, READY, FAILED
+    }
+}
@@ -0,0 +1,383 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import org.openehr.adl.serializer.ArchetypeSerializer;
+import org.openehr.designer.Configuration;
+import org.openehr.designer.io.TemplateDeserializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.security.CodeSource;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Decides how thoroughly serialized archetypes and templates are checked before they are saved. The check used to be
+ * a full parse of every save, which roughly doubles the cost of saving a template:
+ * <ul>
+ * <li>{@link Mode#FULL} parses every save</li>
+ * <li>{@link Mode#SYNTAX} only scans the source for a well formed overall structure (header keyword, balanced
+ * brackets outside strings and comments). Sources the scan finds suspicious are parsed, so a save is never rejected by
+ * the scan alone</li>
+ * <li>{@link Mode#SAMPLED} parses every n-th save, and every save until one has been checked with the current
+ * serializer version</li>
+ * <li>{@link Mode#NONE} does not check saves</li>
+ * </ul>
+ * Statistics show how often a check actually fails, so a cheaper mode can be chosen with confidence. The default policy
+ * is configured with {@code repository.saveValidation} and {@code repository.saveValidation.sampleInterval}.
+ *
+ * @author markopi
+ */
+public class SaveValidationPolicy {
+    private static final Logger LOG = LoggerFactory.getLogger(SaveValidationPolicy.class);
+    private static final int DEFAULT_SAMPLE_INTERVAL = 10;
+    private static volatile SaveValidationPolicy defaultPolicy;
+
+    private final Mode mode;
+    private final int sampleInterval;
+    private final String serializerVersion = getSerializerVersion();
+    private final Set<String> checkedSerializerVersions = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong parsed = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicLong scanSuspicious = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public SaveValidationPolicy(Mode mode, int sampleInterval) {
+        if (sampleInterval < 1) {
+            throw new IllegalArgumentException("sampleInterval: must be at least 1");
+        }
+        this.mode = mode;
+        this.sampleInterval = sampleInterval;
+    }
+
+    public static SaveValidationPolicy getDefault() {
+        SaveValidationPolicy result = defaultPolicy;
+        if (result == null) {
+            synchronized (SaveValidationPolicy.class) {
+                result = defaultPolicy;
+                if (result == null) {
+                    Mode mode = Mode.valueOf(Configuration.get("repository.saveValidation", "full").toUpperCase());
+                    result = new SaveValidationPolicy(mode,
+                            Configuration.getInt("repository.saveValidation.sampleInterval", DEFAULT_SAMPLE_INTERVAL));
+                    defaultPolicy = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks that a serialized archetype or template can be read back, as far as the policy requires.
+     *
+     * @param kind   whether the source is an archetype (adls) or a template (adlt)
+     * @param source serialized archetype or template
+     * @param parser reads the source back, throwing if it cannot
+     */
+    public void validate(Kind kind, String source, Consumer<String> parser) {
+        try {
+            validate(kind, () -> new StringReader(source), () -> parser.accept(source));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Checks that a serialized archetype or template can be read back, as far as the policy requires.
+     *
+     * @param kind   whether the source is an archetype (adls) or a template (adlt)
+     * @param source opens the serialized archetype or template, may be called more than once
+     * @param parser reads the source back, throwing if it cannot
+     */
+    public void validate(Kind kind, SourceReader source, RoundTrip parser) throws IOException {
+        saves.incrementAndGet();
+        switch (mode) {
+            case FULL:
+                parse(kind, parser);
+                break;
+            case SYNTAX:
+                scanned.incrementAndGet();
+                if (!isWellFormed(kind, source)) {
+                    scanSuspicious.incrementAndGet();
+                    parse(kind, parser);
+                }
+                break;
+            case SAMPLED:
+                if (!checkedSerializerVersions.contains(serializerVersion) || saves.get() % sampleInterval == 0) {
+                    parse(kind, parser);
+                    checkedSerializerVersions.add(serializerVersion);
+                } else {
+                    skipped.incrementAndGet();
+                }
+                break;
+            case NONE:
+                skipped.incrementAndGet();
+                break;
+        }
+    }
+
+    private void parse(Kind kind, RoundTrip parser) throws IOException {
+        parsed.incrementAndGet();
+        try {
+            parser.run();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Saved {} could not be read back ({} of {} checked saves failed)", kind.name().toLowerCase(),
+                    failed.incrementAndGet(), parsed.get());
+            throw e;
+        }
+    }
+
+    private static boolean isWellFormed(Kind kind, SourceReader source) throws IOException {
+        try (Reader r = source.open()) {
+            if (kind == Kind.ARCHETYPE) {
+                return isWellFormedArchetype(r);
+            }
+            // template archetypes are scanned one at a time, as they are read
+            boolean[] result = {true};
+            TemplateDeserializer.readArchetypeSources(r, adl -> {
+                if (result[0]) {
+                    try {
+                        result[0] = isWellFormedArchetype(new StringReader(adl));
+                    } catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            });
+            return result[0];
+        }
+    }
+
+    // header keyword first, definition and terminology sections present, and brackets balanced outside of strings,
+    // regular expressions and comments. Angle brackets are only balanced in odin sections, cadl uses them in intervals
+    private static boolean isWellFormedArchetype(Reader r) throws IOException {
+        StringBuilder keyword = new StringBuilder();
+        int c = r.read();
+        while (c >= 0 && (Character.isWhitespace(c) || c == '\uFEFF')) c = r.read();
+        while (c >= 0 && (Character.isLetter(c) || c == '_')) {
+            keyword.append((char) c);
+            c = r.read();
+        }
+        switch (keyword.toString()) {
+            case "archetype":
+            case "template":
+            case "template_overlay":
+            case "operational_template":
+                break;
+            default:
+                return false;
+        }
+
+        StringBuilder open = new StringBuilder();
+        boolean inString = false;
+        boolean inRegex = false;
+        int previous = -1;
+        int previousSignificant = -1;
+        boolean hasDefinition = false;
+        boolean hasTerminology = false;
+        boolean inCadl = false;
+        StringBuilder section = new StringBuilder();
+        for (; c >= 0; previous = c, c = r.read()) {
+            if (inString || inRegex) {
+                if (c == '\\') {
+                    r.read();
+                    c = -2;
+                } else if (c == (inString ? '"' : '/')) {
+                    inString = false;
+                    inRegex = false;
+                }
+                continue;
+            }
+            // section keywords start at the beginning of a line
+            if (Character.isLetter(c) && (section.length() > 0 || previous == '\n' || previous == '\r')) {
+                section.append((char) c);
+            } else if (section.length() > 0) {
+                String sectionKeyword = section.toString();
+                hasDefinition |= sectionKeyword.equals("definition");
+                hasTerminology |= sectionKeyword.equals("terminology");
+                if (isSectionKeyword(sectionKeyword)) {
+                    inCadl = sectionKeyword.equals("definition") || sectionKeyword.equals("rules");
+                }
+                section.setLength(0);
+            }
+            if (!Character.isWhitespace(c)) {
+                int significant = previousSignificant;
+                previousSignificant = c;
+                if (c == '/' && significant == '{') {
+                    // regular expression constraint, as in matches {/.../}
+                    inRegex = true;
+                    continue;
+                }
+            }
+            switch (c) {
+                case '"':
+                    inString = true;
+                    break;
+                case '-':
+                    if (previous == '-') {
+                        while (c >= 0 && c != '\n' && c != '\r') c = r.read();
+                        if (c < 0) return open.length() == 0;
+                    }
+                    break;
+                case '<':
+                    if (!inCadl) open.append((char) c);
+                    break;
+                case '>':
+                    if (inCadl) break;
+                    if (open.length() == 0 || open.charAt(open.length() - 1) != '<') return false;
+                    open.setLength(open.length() - 1);
+                    break;
+                case '{':
+                case '[':
+                case '(':
+                    open.append((char) c);
+                    break;
+                case '}':
+                case ']':
+                case ')':
+                    if (open.length() == 0 || open.charAt(open.length() - 1) != matching((char) c)) return false;
+                    open.setLength(open.length() - 1);
+                    break;
+            }
+        }
+        return hasDefinition && hasTerminology && !inString && !inRegex && open.length() == 0;
+    }
+
+    private static boolean isSectionKeyword(String keyword) {
+        switch (keyword) {
+            case "language":
+            case "description":
+            case "definition":
+            case "rules":
+            case "terminology":
+            case "annotations":
+            case "component_terminologies":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static char matching(char close) {
+        return close == '}' ? '{' : close == ']' ? '[' : '(';
+    }
+
+    private static String getSerializerVersion() {
+        Package p = ArchetypeSerializer.class.getPackage();
+        if (p != null && p.getImplementationVersion() != null) {
+            return p.getImplementationVersion();
+        }
+        CodeSource codeSource = ArchetypeSerializer.class.getProtectionDomain().getCodeSource();
+        return codeSource != null ? String.valueOf(codeSource.getLocation()) : "unknown";
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(this);
+    }
+
+    public enum Mode {
+        FULL, SYNTAX, SAMPLED, NONE
+    }
+
+    public enum Kind {
+        ARCHETYPE, TEMPLATE
+    }
+
+    @FunctionalInterface
+    public interface SourceReader {
+        Reader open() throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface RoundTrip {
+        void run() throws IOException;
+    }
+
+    public static class Statistics {
+        private final Mode mode;
+        private final long saves;
+        private final long parsed;
+        private final long scanned;
+        private final long scanSuspicious;
+        private final long skipped;
+        private final long failed;
+
+        private Statistics(SaveValidationPolicy policy) {
+            this.mode = policy.mode;
+            this.saves = policy.saves.get();
+            this.parsed = policy.parsed.get();
+            this.scanned = policy.scanned.get();
+            this.scanSuspicious = policy.scanSuspicious.get();
+            this.skipped = policy.skipped.get();
+            this.failed = policy.failed.get();
+        }
+
+        public Mode getMode() {
+            return mode;
+        }
+
+        public long getSaves() {
+            return saves;
+        }
+
+        /**
+         * @return number of saves that were parsed back
+         */
+        public long getParsed() {
+            return parsed;
+        }
+
+        /**
+         * @return number of saves checked by scanning only
+         */
+        public long getScanned() {
+            return scanned;
+        }
+
+        /**
+         * @return number of scanned saves the scan did not accept, which were then parsed
+         */
+        public long getScanSuspicious() {
+            return scanSuspicious;
+        }
+
+        /**
+         * @return number of saves that were not checked at all
+         */
+        public long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return number of saves that could not be parsed back, and were rejected
+         */
+        public long getFailed() {
+            return failed;
+        }
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import javax.annotation.Nullable;
+
+/**
+ * Repository backed by a remote source control repository.
+ *
+ * @author markopi
+ */
+public interface ScmRepository {
+    /**
+     * @return name of the repository this one was forked from, or null if it is not a fork
+     */
+    @Nullable
+    String getParent();
+
+    boolean isWritable();
+}
@@ -0,0 +1,49 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import javax.annotation.Nullable;
+
+/**
+ * Repository shared by all users of a source control repository.
+ * <p>
+ * A shared repository is usable as soon as it is created. Its contents are read by {@link #load()}, which is
+ * usually run in the background; until it completes, listings contain only what has been loaded so far.
+ *
+ * @author markopi
+ */
+public interface SharedRepository {
+
+    /**
+     * Reads the contents of the repository. Progress is reported through {@link #getLoadProgress()}.
+     *
+     * @throws RepositoryException if the repository could not be loaded
+     */
+    void load();
+
+    RepositoryLoadProgress getLoadProgress();
+
+    /**
+     * @return name of the repository this one was forked from, or null if it is not a fork
+     */
+    @Nullable
+    String getParent();
+}
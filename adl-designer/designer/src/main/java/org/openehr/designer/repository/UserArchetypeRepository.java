@@ -0,0 +1,93 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import org.openehr.jaxb.am.Archetype;
+
+import javax.annotation.Nullable;
+import java.util.List;
+
+/**
+ * View of a {@link SharedArchetypeRepository} for a single user. Reads go to the shared repository, saves are
+ * checked against the user's permissions and written with the user's credentials.
+ *
+ * @author markopi
+ */
+public class UserArchetypeRepository implements ArchetypeRepository, ScmRepository {
+    private final SharedArchetypeRepository shared;
+    private final ScmCredentials credentials;
+    private final boolean writable;
+
+    public UserArchetypeRepository(SharedArchetypeRepository shared, ScmCredentials credentials, boolean writable) {
+        this.shared = shared;
+        this.credentials = credentials;
+        this.writable = writable;
+    }
+
+    public SharedArchetypeRepository getShared() {
+        return shared;
+    }
+
+    @Override
+    public Archetype getDifferentialArchetype(String archetypeId) {
+        return shared.getDifferentialArchetype(archetypeId);
+    }
+
+    @Override
+    public void saveDifferentialArchetype(Archetype archetype) {
+        if (!writable) {
+            throw new RepositoryAccessException("User " + credentials.getUsername()
+                    + " does not have write access to the repository");
+        }
+        shared.saveDifferentialArchetype(archetype, credentials);
+    }
+
+    @Override
+    public List<ArchetypeInfo> getArchetypeInfos() {
+        return shared.getArchetypeInfos();
+    }
+
+    @Nullable
+    @Override
+    public String getArchetypeVersion(String archetypeId) {
+        return shared.getArchetypeVersion(archetypeId);
+    }
+
+    @Override
+    public boolean isArchetypeVersionContentDerived() {
+        return shared.isArchetypeVersionContentDerived();
+    }
+
+    public RepositoryLoadProgress getLoadProgress() {
+        return shared.getLoadProgress();
+    }
+
+    @Nullable
+    @Override
+    public String getParent() {
+        return shared.getParent();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return writable;
+    }
+}
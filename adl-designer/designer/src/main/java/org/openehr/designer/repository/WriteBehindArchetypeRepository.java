@@ -0,0 +1,417 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang.SerializationUtils;
+import org.openehr.adl.parser.AdlDeserializer;
+import org.openehr.adl.serializer.ArchetypeSerializer;
+import org.openehr.jaxb.am.Archetype;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Archetype repository that acknowledges saves as soon as they are written to a journal on local disk, and pushes
+ * them to the delegate repository on a background thread.
+ * <p>
+ * Saves are pushed in the order they were first queued. A save of an archetype that is still waiting to be pushed
+ * replaces the queued content instead of adding another push. Until a save is pushed, reads of the archetype return
+ * the queued content. Journaled saves that were not pushed before shutdown are queued again by {@link #init()}, in
+ * their original order, which is kept in the names of journal files.
+ * <p>
+ * A save that fails stops the queue until it is retried, so later saves are never pushed ahead of it. A save the
+ * delegate rejects with a {@link RepositoryAccessException} is dropped, as retrying it would not help, and is
+ * reported by {@link #getSaveStatuses()}.
+ *
+ * @author markopi
+ */
+public class WriteBehindArchetypeRepository implements ArchetypeRepository, ScmRepository, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(WriteBehindArchetypeRepository.class);
+    private static final String JOURNAL_EXTENSION = ".adls";
+    private static final long DEFAULT_RETRY_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+    private final ArchetypeRepository delegate;
+    private final Path journalDirectory;
+    private final ThreadLocal<AdlDeserializer> deserializer = ThreadLocal.withInitial(AdlDeserializer::new);
+    private final ScheduledExecutorService pushExecutor = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("archetype-push-%d")
+                    .setDaemon(true)
+                    .build());
+
+    // guards queue and the state of queued saves
+    private final Object lock = new Object();
+    // by archetype id, in push order
+    private final Map<String, QueuedSave> queue = new LinkedHashMap<>();
+    // dropped saves by archetype id, until the archetype is saved again
+    private final Map<String, SaveStatus> rejected = new LinkedHashMap<>();
+    private long sequence;
+    private long retryDelay = DEFAULT_RETRY_DELAY;
+    // null for the default policy
+    private SaveValidationPolicy saveValidationPolicy;
+
+    public WriteBehindArchetypeRepository(ArchetypeRepository delegate, Path journalDirectory) {
+        this.delegate = delegate;
+        this.journalDirectory = journalDirectory;
+    }
+
+    /**
+     * Queues saves left in the journal by a previous run, in the order they were written.
+     */
+    public void init() {
+        try {
+            Files.createDirectories(journalDirectory);
+            SortedMap<Long, Path> journalFiles = new TreeMap<>();
+            try (Stream<Path> files = Files.list(journalDirectory)) {
+                files.filter(p -> p.getFileName().toString().endsWith(JOURNAL_EXTENSION)).forEach(p -> {
+                    Long position = getJournalPosition(p);
+                    if (position != null) {
+                        journalFiles.put(position, p);
+                    } else {
+                        LOG.warn("Ignoring unrecognized journal file {}", p);
+                    }
+                });
+            }
+            synchronized (lock) {
+                if (!journalFiles.isEmpty()) {
+                    sequence = Math.max(sequence, journalFiles.lastKey());
+                }
+                for (Map.Entry<Long, Path> entry : journalFiles.entrySet()) {
+                    Path journalFile = entry.getValue();
+                    String content;
+                    Archetype archetype;
+                    try {
+                        content = new String(Files.readAllBytes(journalFile), Charsets.UTF_8);
+                        archetype = deserializer.get().parse(content);
+                    } catch (RuntimeException e) {
+                        LOG.error("Could not parse journaled archetype " + journalFile + ". It will not be pushed", e);
+                        continue;
+                    }
+                    String archetypeId = archetype.getArchetypeId().getValue();
+                    LOG.info("Queueing journaled save of archetype {}", archetypeId);
+                    queue.put(archetypeId, new QueuedSave(archetypeId, archetype, hash(content), entry.getKey(),
+                            journalFile));
+                }
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("Could not read save journal " + journalDirectory, e);
+        }
+        pushExecutor.execute(this::pushQueued);
+    }
+
+    public void setRetryDelay(long retryDelay) {
+        this.retryDelay = retryDelay;
+    }
+
+    public void setSaveValidationPolicy(SaveValidationPolicy saveValidationPolicy) {
+        this.saveValidationPolicy = saveValidationPolicy;
+    }
+
+    @Override
+    public void close() {
+        // anything not yet pushed stays in the journal
+        pushExecutor.shutdownNow();
+    }
+
+    @Override
+    public Archetype getDifferentialArchetype(String archetypeId) {
+        synchronized (lock) {
+            QueuedSave save = queue.get(archetypeId);
+            if (save != null) {
+                return (Archetype) SerializationUtils.clone(save.archetype);
+            }
+        }
+        return delegate.getDifferentialArchetype(archetypeId);
+    }
+
+    @Override
+    public void saveDifferentialArchetype(Archetype archetype) {
+        if (!isWritable()) {
+            throw new RepositoryAccessException("User does not have write access to the repository");
+        }
+        String archetypeId = archetype.getArchetypeId().getValue();
+        String adlsContent = ArchetypeSerializer.serialize(archetype);
+        // Check to see if the archetype can still be deserialized, so the error is reported to the caller
+        SaveValidationPolicy policy = saveValidationPolicy != null ? saveValidationPolicy
+                : SaveValidationPolicy.getDefault();
+        policy.validate(SaveValidationPolicy.Kind.ARCHETYPE, adlsContent, deserializer.get()::parse);
+
+        Archetype queued = (Archetype) SerializationUtils.clone(archetype);
+        synchronized (lock) {
+            rejected.remove(archetypeId);
+            QueuedSave save = queue.get(archetypeId);
+            if (save == null) {
+                long position = ++sequence;
+                Path journalFile = journalDirectory.resolve(toFileName(position, archetypeId));
+                writeJournalFile(journalFile, adlsContent.getBytes(Charsets.UTF_8));
+                queue.put(archetypeId, new QueuedSave(archetypeId, queued, hash(adlsContent), position, journalFile));
+            } else {
+                // coalesce with the save that is already queued, keeping its position and journal file
+                writeJournalFile(save.journalFile, adlsContent.getBytes(Charsets.UTF_8));
+                save.archetype = queued;
+                save.contentHash = hash(adlsContent);
+                save.sequence = ++sequence;
+                save.state = SaveState.QUEUED;
+                save.error = null;
+                save.attempts = 0;
+                save.queuedTime = System.currentTimeMillis();
+            }
+        }
+        pushExecutor.execute(this::pushQueued);
+    }
+
+    private void writeJournalFile(Path journalFile, byte[] content) {
+        try {
+            Files.createDirectories(journalDirectory);
+            Path tempFile = journalFile.resolveSibling(journalFile.getFileName() + ".tmp");
+            Files.write(tempFile, content, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.WRITE, StandardOpenOption.SYNC);
+            Files.move(tempFile, journalFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RepositoryException("Could not write archetype to save journal " + journalFile, e);
+        }
+    }
+
+    /**
+     * Pushes queued saves one by one until none are left, or until a save fails. Runs only on the push executor.
+     */
+    private void pushQueued() {
+        while (true) {
+            QueuedSave save;
+            Archetype archetype;
+            long pushedSequence;
+            synchronized (lock) {
+                if (queue.isEmpty()) return;
+                save = queue.values().iterator().next();
+                // a failed save waits for its retry, and holds back the saves after it
+                if (save.state != SaveState.QUEUED) return;
+                save.state = SaveState.PUSHING;
+                save.attempts++;
+                archetype = save.archetype;
+                pushedSequence = save.sequence;
+            }
+
+            try {
+                delegate.saveDifferentialArchetype(archetype);
+                synchronized (lock) {
+                    // a newer save may have been queued while this one was pushed
+                    if (save.sequence == pushedSequence) {
+                        queue.remove(save.archetypeId);
+                        deleteJournalFile(save.journalFile);
+                    }
+                }
+                LOG.debug("Pushed archetype {}", save.archetypeId);
+            } catch (RuntimeException e) {
+                LOG.error("Could not push archetype " + save.archetypeId, e);
+                synchronized (lock) {
+                    if (save.sequence != pushedSequence) {
+                        // a newer save was queued meanwhile; push that one instead
+                        continue;
+                    }
+                    save.error = e.getMessage() != null ? e.getMessage() : e.toString();
+                    if (e instanceof RepositoryAccessException) {
+                        // access will not change until the user has different permissions, so the save is dropped
+                        save.state = SaveState.REJECTED;
+                        queue.remove(save.archetypeId);
+                        deleteJournalFile(save.journalFile);
+                        rejected.put(save.archetypeId, new SaveStatus(save));
+                    } else {
+                        save.state = SaveState.FAILED;
+                        scheduleRetry(save, pushedSequence);
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void scheduleRetry(QueuedSave save, long failedSequence) {
+        // closed; the save stays in the journal
+        if (pushExecutor.isShutdown()) return;
+        pushExecutor.schedule(() -> {
+            synchronized (lock) {
+                if (save.sequence != failedSequence || save.state != SaveState.FAILED) return;
+                save.state = SaveState.QUEUED;
+            }
+            pushQueued();
+        }, retryDelay, TimeUnit.MILLISECONDS);
+    }
+
+    private void deleteJournalFile(Path journalFile) {
+        try {
+            Files.deleteIfExists(journalFile);
+        } catch (IOException e) {
+            LOG.warn("Could not delete journal file " + journalFile, e);
+        }
+    }
+
+    private static String hash(String adlsContent) {
+        return Hashing.sha1().hashString(adlsContent, Charsets.UTF_8).toString();
+    }
+
+    private static String toFileName(long position, String archetypeId) {
+        return position + "-" + archetypeId.replaceAll("[^A-Za-z0-9._-]", "_") + JOURNAL_EXTENSION;
+    }
+
+    /**
+     * @return queue position of the save in the journal file, or null if the file name has no position
+     */
+    @Nullable
+    private static Long getJournalPosition(Path journalFile) {
+        String fileName = journalFile.getFileName().toString();
+        int dash = fileName.indexOf('-');
+        try {
+            return dash > 0 ? Long.valueOf(fileName.substring(0, dash)) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return status of the saves that have not yet been pushed, in push order, followed by the saves that were
+     * dropped because the delegate rejected them
+     */
+    public List<SaveStatus> getSaveStatuses() {
+        synchronized (lock) {
+            List<SaveStatus> result = queue.values().stream()
+                    .map(SaveStatus::new)
+                    .collect(Collectors.toList());
+            result.addAll(rejected.values());
+            return result;
+        }
+    }
+
+    @Override
+    public List<ArchetypeInfo> getArchetypeInfos() {
+        Map<String, ArchetypeInfo> infos = new LinkedHashMap<>();
+        for (ArchetypeInfo info : delegate.getArchetypeInfos()) {
+            infos.put(info.getArchetypeId(), info);
+        }
+        synchronized (lock) {
+            for (QueuedSave save : queue.values()) {
+                infos.put(save.archetypeId, AbstractArchetypeRepository.createArchetypeInfo(save.archetype));
+            }
+        }
+        return new ArrayList<>(infos.values());
+    }
+
+    @Nullable
+    @Override
+    public String getArchetypeVersion(String archetypeId) {
+        synchronized (lock) {
+            QueuedSave save = queue.get(archetypeId);
+            if (save != null) {
+                return "queued:" + save.contentHash;
+            }
+        }
+        return delegate.getArchetypeVersion(archetypeId);
+    }
+
+    @Nullable
+    @Override
+    public String getParent() {
+        return delegate instanceof ScmRepository ? ((ScmRepository) delegate).getParent() : null;
+    }
+
+    @Override
+    public boolean isArchetypeVersionContentDerived() {
+        return delegate.isArchetypeVersionContentDerived();
+    }
+
+    @Override
+    public boolean isWritable() {
+        return !(delegate instanceof ScmRepository) || ((ScmRepository) delegate).isWritable();
+    }
+
+    public enum SaveState {
+        QUEUED, PUSHING, FAILED, REJECTED
+    }
+
+    private static class QueuedSave {
+        final String archetypeId;
+        final Path journalFile;
+        Archetype archetype;
+        // of the serialized archetype, used as its version while queued
+        String contentHash;
+        long sequence;
+        long queuedTime = System.currentTimeMillis();
+        SaveState state = SaveState.QUEUED;
+        String error;
+        int attempts;
+
+        QueuedSave(String archetypeId, Archetype archetype, String contentHash, long sequence, Path journalFile) {
+            this.archetypeId = archetypeId;
+            this.archetype = archetype;
+            this.contentHash = contentHash;
+            this.sequence = sequence;
+            this.journalFile = journalFile;
+        }
+    }
+
+    public static class SaveStatus {
+        private final String archetypeId;
+        private final SaveState state;
+        private final long queuedTime;
+        private final int attempts;
+        private final String error;
+
+        private SaveStatus(QueuedSave save) {
+            this.archetypeId = save.archetypeId;
+            this.state = save.state;
+            this.queuedTime = save.queuedTime;
+            this.attempts = save.attempts;
+            this.error = save.error;
+        }
+
+        public String getArchetypeId() {
+            return archetypeId;
+        }
+
+        public SaveState getState() {
+            return state;
+        }
+
+        public long getQueuedTime() {
+            return queuedTime;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+}
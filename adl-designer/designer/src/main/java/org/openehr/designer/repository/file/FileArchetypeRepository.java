@@ -25,9 +25,11 @@ import org.openehr.jaxb.am.Archetype;
 import org.springframework.beans.factory.annotation.Required;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Set;
 
 // todo remove cache
 
@@ -37,10 +39,36 @@ import java.nio.file.Paths;
 public class FileArchetypeRepository extends AbstractFileBasedArchetypeRepository {
 
     private String repositoryLocation;
+    private boolean watchRepository;
+    private long watchDelay = 1000;
+    private RepositoryDirectoryWatcher watcher;
 
     @PostConstruct
     public void init() throws IOException {
         parseRepository();
+        if (watchRepository) {
+            watcher = new RepositoryDirectoryWatcher(getRepositoryLocation(), this::acceptDirectory,
+                    path -> path.getFileName().toString().endsWith(".adls"),
+                    new RepositoryDirectoryWatcher.Listener() {
+                        @Override
+                        public void filesChanged(Set<Path> changedFiles) {
+                            reloadArchetypeFiles(changedFiles);
+                        }
+
+                        @Override
+                        public void rescan() throws IOException {
+                            parseRepository();
+                        }
+                    }, watchDelay);
+            watcher.start();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
     }
 
 
@@ -63,4 +91,19 @@ public class FileArchetypeRepository extends AbstractFileBasedArchetypeRepositor
     public void setRepositoryLocation(String repositoryLocation) {
         this.repositoryLocation = repositoryLocation;
     }
+
+    /**
+     * Sets whether changes made to the repository directory by other processes (such as git pull) are picked up
+     * while the repository is open. Disabled by default.
+     */
+    public void setWatchRepository(boolean watchRepository) {
+        this.watchRepository = watchRepository;
+    }
+
+    /**
+     * Sets the time in milliseconds without further changes after which changed files are reloaded.
+     */
+    public void setWatchDelay(long watchDelay) {
+        this.watchDelay = watchDelay;
+    }
 }
@@ -25,6 +25,8 @@ import org.apache.commons.lang.ObjectUtils;
 import org.openehr.adl.util.ArchetypeWrapper;
 import org.openehr.designer.io.TemplateDeserializer;
 import org.openehr.designer.io.TemplateSerializer;
+import org.openehr.designer.repository.RepositoryLoadProgress;
+import org.openehr.designer.repository.SaveValidationPolicy;
 import org.openehr.designer.repository.TemplateInfo;
 import org.openehr.designer.repository.TemplateRepository;
 import org.openehr.jaxb.am.Archetype;
@@ -32,20 +34,25 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Required;
 
+import javax.annotation.Nullable;
 import javax.annotation.PostConstruct;
-import java.io.FileOutputStream;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * @author Marko Pipan
@@ -55,8 +62,15 @@ public class FileTemplateRepository implements TemplateRepository {
 
     private Path repositoryLocation;
 
-    private ConcurrentHashMap<String, List<Archetype>> templateMap = new ConcurrentHashMap<>();
+    // immutable snapshots, replaced as a whole under updateLock so readers never see a partial update
+    private volatile Map<String, List<Archetype>> templateMap = Collections.emptyMap();
+    private Map<Path, String> templateIdsByFile = new HashMap<>();
+    private final Object updateLock = new Object();
+    private volatile RepositoryLoadProgress loadProgress = new RepositoryLoadProgress();
 
+    private boolean watchRepository;
+    private long watchDelay = 1000;
+    private RepositoryDirectoryWatcher watcher;
 
 
     @Required
@@ -64,23 +78,144 @@ public class FileTemplateRepository implements TemplateRepository {
         this.repositoryLocation = Paths.get(repositoryLocation);
     }
 
+    /**
+     * Sets whether changes made to the repository directory by other processes (such as git pull) are picked up
+     * while the repository is open. Disabled by default.
+     */
+    public void setWatchRepository(boolean watchRepository) {
+        this.watchRepository = watchRepository;
+    }
+
+    /**
+     * Sets the time in milliseconds without further changes after which changed files are reloaded.
+     */
+    public void setWatchDelay(long watchDelay) {
+        this.watchDelay = watchDelay;
+    }
+
     @PostConstruct
     public void init() throws IOException {
         Files.createDirectories(repositoryLocation);
 
+        loadTemplates();
+        if (watchRepository) {
+            watcher = new RepositoryDirectoryWatcher(repositoryLocation, dir -> false, this::isTemplateFile,
+                    new RepositoryDirectoryWatcher.Listener() {
+                        @Override
+                        public void filesChanged(Set<Path> changedFiles) {
+                            reloadTemplateFiles(changedFiles);
+                        }
+
+                        @Override
+                        public void rescan() throws IOException {
+                            loadTemplates();
+                        }
+                    }, watchDelay);
+            watcher.start();
+        }
+    }
+
+    @PreDestroy
+    public void close() throws IOException {
+        if (watcher != null) {
+            watcher.close();
+        }
+    }
+
+    private boolean isTemplateFile(Path path) {
+        return path.getFileName().toString().endsWith(".adlt");
+    }
+
+    private void loadTemplates() throws IOException {
+        RepositoryLoadProgress progress = new RepositoryLoadProgress();
+        loadProgress = progress;
+        try {
+            List<Path> templateFiles;
+            try (Stream<Path> files = Files.list(repositoryLocation)) {
+                templateFiles = files.filter(path -> isTemplateFile(path) && !Files.isDirectory(path))
+                        .collect(Collectors.toList());
+            }
+            progress.addFilesScanned(templateFiles.size());
+
+            Map<String, List<Archetype>> newTemplateMap = new HashMap<>();
+            Map<Path, String> newTemplateIdsByFile = new HashMap<>();
+            for (Path path : templateFiles) {
+                List<Archetype> archetypes = parseTemplateFile(path);
+                if (archetypes != null) {
+                    String templateId = archetypes.get(0).getArchetypeId().getValue();
+                    newTemplateMap.put(templateId, archetypes);
+                    newTemplateIdsByFile.put(repositoryLocation.relativize(path), templateId);
+                    progress.fileParsed();
+                } else {
+                    progress.fileFailed();
+                }
+            }
+            synchronized (updateLock) {
+                templateMap = Collections.unmodifiableMap(newTemplateMap);
+                templateIdsByFile = newTemplateIdsByFile;
+            }
+            progress.ready();
+        } catch (IOException | RuntimeException e) {
+            progress.failed(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return progress of the last full load of the repository. Templates become available when it is complete
+     */
+    public RepositoryLoadProgress getLoadProgress() {
+        return loadProgress;
+    }
 
-        Files.list(repositoryLocation)
-                .filter(path -> path.getFileName().toString().endsWith(".adlt") && !Files.isDirectory(path))
-                .forEach(path -> {
-                    try {
+    /**
+     * Re-reads template files that were created, modified or deleted outside of this repository.
+     *
+     * @param templateFiles changed template files, relative to the repository location
+     */
+    protected void reloadTemplateFiles(Collection<Path> templateFiles) {
+        Map<Path, List<Archetype>> parsed = new HashMap<>();
+        for (Path templateFile : templateFiles) {
+            Path path = repositoryLocation.resolve(templateFile);
+            parsed.put(templateFile, Files.isRegularFile(path) ? parseTemplateFile(path) : null);
+        }
+
+        synchronized (updateLock) {
+            Map<String, List<Archetype>> newTemplateMap = new HashMap<>(templateMap);
+            Map<Path, String> newTemplateIdsByFile = new HashMap<>(templateIdsByFile);
+            for (Map.Entry<Path, List<Archetype>> entry : parsed.entrySet()) {
+                String oldTemplateId = newTemplateIdsByFile.remove(entry.getKey());
+                if (oldTemplateId != null) {
+                    newTemplateMap.remove(oldTemplateId);
+                }
+                List<Archetype> archetypes = entry.getValue();
+                if (archetypes != null) {
+                    String templateId = archetypes.get(0).getArchetypeId().getValue();
+                    newTemplateMap.put(templateId, archetypes);
+                    newTemplateIdsByFile.put(entry.getKey(), templateId);
+                }
+            }
+            templateMap = Collections.unmodifiableMap(newTemplateMap);
+            templateIdsByFile = newTemplateIdsByFile;
+        }
+        LOG.info("Reloaded {} changed template files", templateFiles.size());
+    }
 
-                        List<Archetype> archetypes = TemplateDeserializer.deserialize(Files.newInputStream(path));
-                        templateMap.put(archetypes.get(0).getArchetypeId().getValue(), archetypes);
+    /**
+     * @return file in which a template is saved, relative to the repository location
+     */
+    protected Path getTemplateFile(String templateId) {
+        return Paths.get(templateId + ".adlt");
+    }
 
-                    } catch (Exception e) {
-                        LOG.error("Error parsing template {}. Will be ignored", path.getFileName(), e);
-                    }
-                });
+    @Nullable
+    private List<Archetype> parseTemplateFile(Path path) {
+        try (InputStream in = Files.newInputStream(path)) {
+            return TemplateDeserializer.deserialize(in, ForkJoinPool.commonPool());
+        } catch (Exception e) {
+            LOG.error("Error parsing template {}. Will be ignored", path.getFileName(), e);
+            return null;
+        }
     }
 
     @Override
@@ -104,15 +239,32 @@ public class FileTemplateRepository implements TemplateRepository {
     @Override
         public void saveTemplate(List<Archetype> archetypes) {
         String templateId = archetypes.get(0).getArchetypeId().getValue();
-        String adltContent = TemplateSerializer.serialize(archetypes);
-        // Check to see if the template can still be deserialized
-        TemplateDeserializer.deserialize(adltContent);
         try {
-            try (Writer w = new OutputStreamWriter(new FileOutputStream(repositoryLocation.resolve(templateId + ".adlt").toFile()),
-                    Charsets.UTF_8)) {
-                w.append(adltContent);
+            Path templateFile = getTemplateFile(templateId);
+            Path target = repositoryLocation.resolve(templateFile);
+            // written next to the target so it can be moved in place, ignored by the watcher as it is not an .adlt
+            Path temp = Files.createTempFile(target.getParent(), ".save-", ".adlt.tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(temp)) {
+                    TemplateSerializer.serialize(archetypes, out, ForkJoinPool.commonPool());
+                }
+                // Check to see if the template can still be deserialized
+                SaveValidationPolicy.getDefault().validate(SaveValidationPolicy.Kind.TEMPLATE,
+                        () -> Files.newBufferedReader(temp, Charsets.UTF_8), () -> {
+                            try (InputStream in = Files.newInputStream(temp)) {
+                                TemplateDeserializer.deserialize(in, ForkJoinPool.commonPool());
+                            }
+                        });
+                synchronized (updateLock) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Map<String, List<Archetype>> newTemplateMap = new HashMap<>(templateMap);
+                    newTemplateMap.put(templateId, archetypes);
+                    templateMap = Collections.unmodifiableMap(newTemplateMap);
+                    templateIdsByFile.put(templateFile, templateId);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
             }
-            templateMap.put(templateId, archetypes);
         } catch (IOException e) {
             throw new RuntimeException("Error saving template", e);
         }
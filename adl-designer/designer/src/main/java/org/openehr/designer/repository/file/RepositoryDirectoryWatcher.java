@@ -0,0 +1,250 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.file;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches a repository directory tree for changed files. Changes are collected until no new change arrives for
+ * the debounce delay, so that a burst of changes (such as a git checkout) results in a single notification.
+ *
+ * @author markopi
+ */
+public class RepositoryDirectoryWatcher implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryDirectoryWatcher.class);
+    // a constant stream of changes postpones the notification by at most this many debounce delays
+    static final int MAX_DEBOUNCE_DELAYS = 10;
+
+    private final Path root;
+    private final Predicate<Path> directoryFilter;
+    private final Predicate<Path> fileFilter;
+    private final Listener listener;
+    private final long debounceMillis;
+
+    private WatchService watchService;
+    private final Map<Path, WatchKey> watchKeys = new HashMap<>();
+    private ScheduledExecutorService notifier;
+
+    private final Set<Path> pendingFiles = new LinkedHashSet<>();
+    private boolean pendingRescan;
+    private ScheduledFuture<?> pendingNotification;
+    private long firstPendingTime;
+
+    /**
+     * @param root            directory to watch
+     * @param directoryFilter which subdirectories of root to watch
+     * @param fileFilter      which files to report
+     * @param listener        receives changes, always on the same notification thread
+     * @param debounceMillis  quiet period after the last change before the listener is notified
+     */
+    public RepositoryDirectoryWatcher(Path root, Predicate<Path> directoryFilter, Predicate<Path> fileFilter,
+            Listener listener, long debounceMillis) {
+        this.root = root;
+        this.directoryFilter = directoryFilter;
+        this.fileFilter = fileFilter;
+        this.listener = listener;
+        this.debounceMillis = debounceMillis;
+    }
+
+    public synchronized void start() throws IOException {
+        WatchService service = root.getFileSystem().newWatchService();
+        watchService = service;
+        registerRecursively(service, root, new ArrayList<>());
+        notifier = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("repository-watcher-notifier-%d")
+                .setDaemon(true)
+                .build());
+
+        // the thread keeps its own reference, close() clears the field while the thread is blocked on the service
+        Thread watchThread = new Thread(() -> processEvents(service), "repository-watcher-" + root.getFileName());
+        watchThread.setDaemon(true);
+        watchThread.start();
+        LOG.info("Watching {} for changes", root);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            notifier.shutdownNow();
+            watchService = null;
+        }
+    }
+
+    private void registerRecursively(WatchService service, Path directory, List<Path> foundFiles)
+            throws IOException {
+        Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(root) && !directoryFilter.test(dir)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                synchronized (watchKeys) {
+                    watchKeys.put(dir, dir.register(service, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (fileFilter.test(file)) {
+                    foundFiles.add(root.relativize(file));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void processEvents(WatchService service) {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+            Path directory = (Path) key.watchable();
+            List<Path> changedFiles = new ArrayList<>();
+            boolean rescan = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                if (event.kind() == OVERFLOW) {
+                    rescan = true;
+                    continue;
+                }
+                Path path = directory.resolve((Path) event.context());
+                if (event.kind() == ENTRY_CREATE && Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                    if (directoryFilter.test(path)) {
+                        try {
+                            // files may have been created before the directory was registered
+                            registerRecursively(service, path, changedFiles);
+                        } catch (IOException | ClosedWatchServiceException e) {
+                            LOG.warn("Could not watch directory {}", path, e);
+                            rescan = true;
+                        }
+                    }
+                } else if (fileFilter.test(path)) {
+                    changedFiles.add(root.relativize(path));
+                } else if (event.kind() == ENTRY_DELETE && isWatchedDirectory(path)) {
+                    // a moved or deleted directory does not report the files it contained
+                    rescan = true;
+                }
+            }
+            if (!key.reset()) {
+                synchronized (watchKeys) {
+                    watchKeys.remove(directory);
+                }
+                // the directory is gone; its key may be cancelled before the parent reports the deletion
+                rescan = true;
+            }
+            if (rescan || !changedFiles.isEmpty()) {
+                scheduleNotification(changedFiles, rescan);
+            }
+        }
+    }
+
+    private boolean isWatchedDirectory(Path path) {
+        synchronized (watchKeys) {
+            return watchKeys.containsKey(path);
+        }
+    }
+
+    private synchronized void scheduleNotification(List<Path> changedFiles, boolean rescan) {
+        if (watchService == null) {
+            return;
+        }
+        pendingFiles.addAll(changedFiles);
+        pendingRescan |= rescan;
+
+        long now = System.currentTimeMillis();
+        if (pendingNotification == null) {
+            firstPendingTime = now;
+        } else {
+            pendingNotification.cancel(false);
+        }
+        long maxDelay = firstPendingTime + debounceMillis * MAX_DEBOUNCE_DELAYS - now;
+        long delay = Math.max(0, Math.min(debounceMillis, maxDelay));
+        pendingNotification = notifier.schedule(this::notifyListener, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void notifyListener() {
+        Set<Path> changedFiles;
+        boolean rescan;
+        synchronized (this) {
+            changedFiles = new LinkedHashSet<>(pendingFiles);
+            rescan = pendingRescan;
+            pendingFiles.clear();
+            pendingRescan = false;
+            pendingNotification = null;
+        }
+        try {
+            if (rescan) {
+                listener.rescan();
+            } else if (!changedFiles.isEmpty()) {
+                listener.filesChanged(changedFiles);
+            }
+        } catch (Exception e) {
+            LOG.error("Error processing changes in {}", root, e);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * @param changedFiles files that were created, modified or deleted, relative to the watched directory
+         */
+        void filesChanged(Set<Path> changedFiles) throws IOException;
+
+        /**
+         * Called when changes may have been missed and the whole directory should be read again.
+         */
+        void rescan() throws IOException;
+    }
+}
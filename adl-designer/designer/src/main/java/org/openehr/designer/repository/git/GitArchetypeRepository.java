@@ -0,0 +1,120 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.git;
+
+import org.openehr.designer.repository.AbstractFileBasedArchetypeRepository;
+import org.openehr.designer.repository.RepositoryAccessException;
+import org.openehr.designer.repository.RepositoryException;
+import org.openehr.designer.repository.ScmCredentials;
+import org.openehr.designer.repository.SharedArchetypeRepository;
+import org.openehr.jaxb.am.Archetype;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Archetype repository served from the archetypes directory of a local git clone. Saves are committed to the clone
+ * and pushed in the background.
+ *
+ * @author markopi
+ */
+public class GitArchetypeRepository extends AbstractFileBasedArchetypeRepository implements SharedArchetypeRepository {
+    private static final String ARCHETYPES_DIRECTORY = "archetypes";
+
+    private final GitRepositoryClone clone;
+    private final String parent;
+
+    public GitArchetypeRepository(GitRepositoryClone clone, String parent) {
+        this.clone = clone;
+        this.parent = parent;
+        setUseIndexFile(true);
+    }
+
+    public void init() throws IOException {
+        Files.createDirectories(getRepositoryLocation());
+        parseRepository();
+        clone.addUpdateListener(this::onUpdate);
+    }
+
+    /**
+     * Opens the clone, which may first need to be cloned from the remote repository, and reads the archetypes.
+     */
+    @Override
+    public void load() {
+        try {
+            clone.open();
+            init();
+        } catch (IOException | RuntimeException e) {
+            getLoadProgress().failed(e);
+            throw e instanceof RepositoryException ? (RepositoryException) e : new RepositoryException(e);
+        }
+    }
+
+    private void onUpdate(Set<String> changedFiles) {
+        String prefix = ARCHETYPES_DIRECTORY + "/";
+        Set<Path> changedArchetypes = changedFiles.stream()
+                .filter(path -> path.startsWith(prefix) && path.endsWith(".adls"))
+                .map(path -> Paths.get(path.substring(prefix.length())))
+                .collect(Collectors.toSet());
+        if (!changedArchetypes.isEmpty()) {
+            reloadArchetypeFiles(changedArchetypes);
+        }
+    }
+
+    @Override
+    protected Path getRepositoryLocation() {
+        return clone.getWorkTree().resolve(ARCHETYPES_DIRECTORY);
+    }
+
+    @Override
+    protected Path getIndexFileLocation() {
+        // keeps the index out of the working tree
+        return clone.getGitDirectory().resolve(INDEX_FILE_NAME);
+    }
+
+    @Override
+    public Archetype getDifferentialArchetype(String archetypeId) {
+        return loadDifferentialArchetype(archetypeId);
+    }
+
+    @Override
+    public void saveDifferentialArchetype(Archetype archetype) {
+        throw new RepositoryAccessException("Archetypes can only be saved on behalf of a user");
+    }
+
+    @Override
+    public void saveDifferentialArchetype(Archetype archetype, ScmCredentials credentials) {
+        clone.commit("Committed through adl-designer", credentials, () -> {
+            LocalArchetypeInfo info = saveArchetypeToFile(archetype);
+            return Collections.singletonList(Paths.get(ARCHETYPES_DIRECTORY).resolve(info.getPath()));
+        });
+    }
+
+    @Override
+    public String getParent() {
+        return parent;
+    }
+}
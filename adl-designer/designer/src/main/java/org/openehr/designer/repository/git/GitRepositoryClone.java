@@ -0,0 +1,570 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.git;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.jgit.api.AddCommand;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.api.RebaseCommand;
+import org.eclipse.jgit.api.RebaseResult;
+import org.eclipse.jgit.api.ResetCommand;
+import org.eclipse.jgit.api.errors.GitAPIException;
+import org.eclipse.jgit.diff.DiffEntry;
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Ref;
+import org.eclipse.jgit.lib.RefUpdate;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.transport.CredentialsProvider;
+import org.eclipse.jgit.transport.PushResult;
+import org.eclipse.jgit.transport.RefSpec;
+import org.eclipse.jgit.transport.RemoteRefUpdate;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.eclipse.jgit.treewalk.CanonicalTreeParser;
+import org.openehr.designer.repository.RepositoryScmException;
+import org.openehr.designer.repository.ScmCredentials;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Local clone of a single branch of a remote git repository. Saves are committed locally and pushed on a
+ * background thread; the clone is brought up to date with {@link #updateIfStale(long)}. Each commit is pushed with
+ * the credentials of the user that made it, as long as they are known; see {@link #getPendingCommits()}.
+ * <p>
+ * Changes to the working tree and the local branch run under a lock, so a background update never sees a half
+ * written change. Fetches and pushes run outside of that lock, one at a time, so a slow push does not hold up saves.
+ * <p>
+ * Local commits are rebased on top of the remote branch. If they conflict with it, the rebase is aborted and the
+ * local commits are dropped in favour of the remote branch, so the clone stays usable; the conflict is reported
+ * as a {@link RepositoryScmException}. Dropped commits are kept under {@value #DROPPED_REFS} and listed by
+ * {@link #getDroppedCommits()}, so they can be recovered by hand.
+ *
+ * @author markopi
+ */
+public class GitRepositoryClone implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(GitRepositoryClone.class);
+    private static final String REMOTE = "origin";
+    static final String DROPPED_REFS = "refs/adl-designer/dropped/";
+
+    private final Path directory;
+    private final String remoteUrl;
+    private final String branch;
+    private final String remoteBranchRef;
+    private final CredentialsProvider credentialsProvider;
+    // guards the working tree and local refs
+    private final Object lock = new Object();
+    // serializes fetches and pushes; when both are needed, it is taken before lock
+    private final Object remoteLock = new Object();
+    private final List<Consumer<Set<String>>> updateListeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService backgroundExecutor;
+    private final AtomicBoolean updateScheduled = new AtomicBoolean();
+    private final AtomicBoolean pushScheduled = new AtomicBoolean();
+    // latest credentials of each user that committed, by username
+    private final Map<String, CredentialsProvider> pushCredentials = new ConcurrentHashMap<>();
+
+    private volatile Git git;
+    private volatile long lastUpdateTime;
+
+    public GitRepositoryClone(Path directory, String remoteUrl, String branch, CredentialsProvider credentialsProvider) {
+        this.directory = directory;
+        this.remoteUrl = remoteUrl;
+        this.branch = branch;
+        this.remoteBranchRef = Constants.R_REMOTES + REMOTE + "/" + branch;
+        this.credentialsProvider = credentialsProvider;
+        this.backgroundExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("git-" + directory.getFileName() + "-%d")
+                .setDaemon(true)
+                .build());
+    }
+
+    /**
+     * Opens the clone, cloning the remote repository first if there is no local clone yet. An existing clone is
+     * updated from the remote. Does nothing if the clone is already open.
+     */
+    public void open() {
+        boolean existing;
+        // nothing else can use the clone before it is open, so cloning may hold the lock
+        synchronized (lock) {
+            if (git != null) return;
+            try {
+                existing = Files.isDirectory(directory.resolve(".git"));
+                if (existing) {
+                    git = Git.open(directory.toFile());
+                } else {
+                    LOG.info("Cloning {} branch {} into {}", remoteUrl, branch, directory);
+                    Files.createDirectories(directory);
+                    // JGit does not support shallow clones, so only the history of a single branch is fetched
+                    git = Git.cloneRepository()
+                            .setURI(remoteUrl)
+                            .setDirectory(directory.toFile())
+                            .setBranch(branch)
+                            .setBranchesToClone(Collections.singleton("refs/heads/" + branch))
+                            .setCredentialsProvider(credentialsProvider)
+                            .call();
+                    lastUpdateTime = System.currentTimeMillis();
+                }
+            } catch (IOException | GitAPIException e) {
+                throw new RepositoryScmException("Could not open local clone of " + remoteUrl, e);
+            }
+        }
+        if (existing) {
+            update();
+        }
+    }
+
+    public Path getWorkTree() {
+        return directory;
+    }
+
+    /**
+     * @return directory for local data that must not be part of the working tree
+     */
+    public Path getGitDirectory() {
+        return directory.resolve(".git");
+    }
+
+    /**
+     * Registers a listener that receives paths of files changed by an update, relative to the working tree and with
+     * '/' separators.
+     */
+    public void addUpdateListener(Consumer<Set<String>> listener) {
+        updateListeners.add(listener);
+    }
+
+    /**
+     * Schedules a background update from the remote repository if the last update is older than the given age.
+     */
+    public void updateIfStale(long maxAgeMillis) {
+        if (System.currentTimeMillis() - lastUpdateTime < maxAgeMillis) return;
+        if (!updateScheduled.compareAndSet(false, true)) return;
+
+        backgroundExecutor.submit(() -> {
+            updateScheduled.set(false);
+            try {
+                update();
+            } catch (RuntimeException e) {
+                LOG.error("Could not update local clone of {}", remoteUrl, e);
+            }
+        });
+    }
+
+    /**
+     * Fetches changes from the remote repository, rebases local commits on top of them and notifies update listeners
+     * of the changed files.
+     */
+    public void update() {
+        Set<String> changedFiles;
+        synchronized (remoteLock) {
+            // not opened yet; opening brings the clone up to date anyway
+            if (git == null) return;
+            try {
+                changedFiles = fetchAndRebase();
+            } catch (IOException | GitAPIException e) {
+                throw new RepositoryScmException("Could not update local clone of " + remoteUrl, e);
+            }
+        }
+        notifyUpdateListeners(changedFiles);
+    }
+
+    /**
+     * Must be called while holding remoteLock.
+     *
+     * @return files changed by the rebase
+     */
+    private Set<String> fetchAndRebase() throws IOException, GitAPIException {
+        git.fetch()
+                .setRemote(REMOTE)
+                .setRefSpecs(new RefSpec("+refs/heads/" + branch + ":" + remoteBranchRef))
+                .setCredentialsProvider(credentialsProvider)
+                .call();
+        lastUpdateTime = System.currentTimeMillis();
+
+        List<String> droppedCommits;
+        Set<String> changedFiles;
+        synchronized (lock) {
+            if (git.getRepository().getRepositoryState().isRebasing()) {
+                // left over from an interrupted rebase
+                git.rebase().setOperation(RebaseCommand.Operation.ABORT).call();
+            }
+            ObjectId oldTree = git.getRepository().resolve("HEAD^{tree}");
+            RebaseResult result = git.rebase().setUpstream(remoteBranchRef).call();
+            if (result.getStatus().isSuccessful()) {
+                return getChangedFiles(oldTree, git.getRepository().resolve("HEAD^{tree}"));
+            }
+            droppedCommits = dropLocalCommits();
+            changedFiles = getChangedFiles(oldTree, git.getRepository().resolve("HEAD^{tree}"));
+        }
+        notifyUpdateListeners(changedFiles);
+        throw new RepositoryScmException("Local commits " + droppedCommits + " conflict with " + branch + " on "
+                + remoteUrl + " and were dropped. They are kept under " + DROPPED_REFS + " in " + directory);
+    }
+
+    /**
+     * Aborts a failed rebase and resets the local branch to the remote branch. Each dropped commit is first kept on a
+     * ref under {@link #DROPPED_REFS}. Must be called while holding lock.
+     *
+     * @return descriptions of the dropped local commits
+     */
+    private List<String> dropLocalCommits() throws IOException, GitAPIException {
+        if (git.getRepository().getRepositoryState().isRebasing()) {
+            git.rebase().setOperation(RebaseCommand.Operation.ABORT).call();
+        }
+        List<String> result = new ArrayList<>();
+        for (RevCommit commit : getLocalCommits()) {
+            RefUpdate backup = git.getRepository().updateRef(DROPPED_REFS + commit.name());
+            backup.setNewObjectId(commit);
+            RefUpdate.Result backupResult = backup.forceUpdate();
+            if (backupResult != RefUpdate.Result.NEW && backupResult != RefUpdate.Result.NO_CHANGE
+                    && backupResult != RefUpdate.Result.FORCED) {
+                // keep the commits rather than lose them; the clone stays behind until the rebase can be resolved
+                throw new IOException("Could not keep dropped commit " + commit.name() + ": " + backupResult);
+            }
+            result.add(commit.abbreviate(7).name() + " by " + commit.getAuthorIdent().getName());
+        }
+        git.reset().setMode(ResetCommand.ResetType.HARD).setRef(remoteBranchRef).call();
+        return result;
+    }
+
+    /**
+     * @return local commits that were dropped because they conflicted with the remote branch, newest first
+     */
+    public List<DroppedCommit> getDroppedCommits() {
+        synchronized (lock) {
+            if (git == null) return Collections.emptyList();
+            List<DroppedCommit> result = new ArrayList<>();
+            RevWalk walk = new RevWalk(git.getRepository());
+            try {
+                for (Ref ref : git.getRepository().getRefDatabase().getRefs(DROPPED_REFS).values()) {
+                    result.add(new DroppedCommit(ref.getName(), walk.parseCommit(ref.getObjectId())));
+                }
+            } catch (IOException e) {
+                throw new RepositoryScmException("Could not read dropped commits of " + remoteUrl, e);
+            } finally {
+                walk.release();
+            }
+            result.sort((a, b) -> Long.compare(b.getTime(), a.getTime()));
+            return result;
+        }
+    }
+
+    private void notifyUpdateListeners(Set<String> changedFiles) {
+        if (!changedFiles.isEmpty()) {
+            LOG.info("Updated {} files in local clone of {}", changedFiles.size(), remoteUrl);
+            updateListeners.forEach(l -> l.accept(changedFiles));
+        }
+    }
+
+    private Set<String> getChangedFiles(ObjectId oldTree, ObjectId newTree) throws IOException, GitAPIException {
+        if (oldTree == null || newTree == null || oldTree.equals(newTree)) {
+            return Collections.emptySet();
+        }
+        Set<String> result = new LinkedHashSet<>();
+        ObjectReader reader = git.getRepository().newObjectReader();
+        try {
+            List<DiffEntry> diffs = git.diff()
+                    .setOldTree(new CanonicalTreeParser(null, reader, oldTree))
+                    .setNewTree(new CanonicalTreeParser(null, reader, newTree))
+                    .setShowNameAndStatusOnly(true)
+                    .call();
+            for (DiffEntry diff : diffs) {
+                if (!DiffEntry.DEV_NULL.equals(diff.getOldPath())) {
+                    result.add(diff.getOldPath());
+                }
+                if (!DiffEntry.DEV_NULL.equals(diff.getNewPath())) {
+                    result.add(diff.getNewPath());
+                }
+            }
+        } finally {
+            reader.release();
+        }
+        return result;
+    }
+
+    /**
+     * Applies a change to the working tree and commits the changed files as the given user. The commit is pushed in
+     * the background, with the credentials of the same user.
+     *
+     * @param change writes files to the working tree, and returns their paths relative to the working tree
+     */
+    public void commit(String message, ScmCredentials credentials, ChangeWriter change) {
+        synchronized (lock) {
+            try {
+                List<Path> files = change.write();
+                AddCommand add = git.add();
+                for (Path file : files) {
+                    add.addFilepattern(toGitPath(file));
+                }
+                add.call();
+                PersonIdent author = new PersonIdent(credentials.getUsername(), credentials.getEmail());
+                git.commit()
+                        .setMessage(message)
+                        .setAuthor(author)
+                        .setCommitter(author)
+                        .call();
+                pushCredentials.put(credentials.getUsername(), new UsernamePasswordCredentialsProvider(
+                        credentials.getUsername(), credentials.getToken()));
+            } catch (IOException | GitAPIException e) {
+                throw new RepositoryScmException("Could not commit to local clone of " + remoteUrl, e);
+            }
+        }
+        schedulePush();
+    }
+
+    private void schedulePush() {
+        // a push sends all local commits, so one pending push is enough
+        if (!pushScheduled.compareAndSet(false, true)) return;
+
+        backgroundExecutor.submit(() -> {
+            pushScheduled.set(false);
+            try {
+                push();
+            } catch (RuntimeException e) {
+                LOG.error("Could not push local commits to {}. Will retry on next save", remoteUrl, e);
+            }
+        });
+    }
+
+    private void push() {
+        Set<String> changedFiles;
+        boolean pushed;
+        synchronized (remoteLock) {
+            try {
+                if (tryPush()) return;
+                // remote has new commits; rebase local commits on top of them and try once more
+                changedFiles = fetchAndRebase();
+                pushed = tryPush();
+            } catch (IOException | GitAPIException e) {
+                throw new RepositoryScmException("Could not push to " + remoteUrl, e);
+            }
+        }
+        notifyUpdateListeners(changedFiles);
+        if (!pushed) {
+            throw new RepositoryScmException("Push to " + remoteUrl + " was rejected");
+        }
+    }
+
+    /**
+     * Pushes local commits one at a time, oldest first, each with the credentials of its author. A commit whose author
+     * has no credentials here, e.g. one committed before a restart, does not hold up the commits after it: it is pushed
+     * together with the next commit that has credentials, or with {@link #getFallbackCredentials()} if it is the last
+     * one. Must be called while holding remoteLock.
+     *
+     * @return false if the remote rejected a commit because it has new commits of its own
+     */
+    private boolean tryPush() throws IOException, GitAPIException {
+        List<RevCommit> localCommits = Lists.reverse(getLocalCommits());
+        List<String> withoutCredentials = new ArrayList<>();
+        for (int i = 0; i < localCommits.size(); i++) {
+            RevCommit commit = localCommits.get(i);
+            String author = commit.getAuthorIdent().getName();
+            CredentialsProvider credentials = pushCredentials.get(author);
+            if (credentials == null) {
+                withoutCredentials.add(commit.abbreviate(7).name() + " by " + author);
+                if (i < localCommits.size() - 1) continue;
+                credentials = getFallbackCredentials();
+            }
+            if (!withoutCredentials.isEmpty()) {
+                LOG.warn("Pushing commits {} to {} with credentials of another user, since their authors have no "
+                        + "credentials here", withoutCredentials, remoteUrl);
+                withoutCredentials.clear();
+            }
+            if (!tryPush(commit, credentials)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return credentials of a user that committed, or the credentials the clone was opened with if nobody has
+     */
+    private CredentialsProvider getFallbackCredentials() {
+        return Iterables.getFirst(pushCredentials.values(), credentialsProvider);
+    }
+
+    /**
+     * @return local commits that are not on the remote branch yet, newest first
+     */
+    private List<RevCommit> getLocalCommits() throws IOException, GitAPIException {
+        ObjectId remoteHead = git.getRepository().resolve(remoteBranchRef);
+        ObjectId head = git.getRepository().resolve(Constants.HEAD);
+        return Lists.newArrayList(git.log().addRange(remoteHead, head).call());
+    }
+
+    /**
+     * @return local commits that have not been pushed yet, newest first
+     */
+    public List<PendingCommit> getPendingCommits() {
+        synchronized (lock) {
+            if (git == null) return Collections.emptyList();
+            try {
+                List<PendingCommit> result = new ArrayList<>();
+                for (RevCommit commit : getLocalCommits()) {
+                    result.add(new PendingCommit(commit,
+                            pushCredentials.containsKey(commit.getAuthorIdent().getName())));
+                }
+                return result;
+            } catch (IOException | GitAPIException e) {
+                throw new RepositoryScmException("Could not read local commits of " + remoteUrl, e);
+            }
+        }
+    }
+
+    private boolean tryPush(RevCommit commit, CredentialsProvider credentials) throws GitAPIException {
+        Iterable<PushResult> results = git.push()
+                .setRemote(REMOTE)
+                .setRefSpecs(new RefSpec(commit.name() + ":refs/heads/" + branch))
+                .setCredentialsProvider(credentials)
+                .call();
+        for (PushResult result : results) {
+            for (RemoteRefUpdate update : result.getRemoteUpdates()) {
+                if (update.getStatus() != RemoteRefUpdate.Status.OK
+                        && update.getStatus() != RemoteRefUpdate.Status.UP_TO_DATE) {
+                    LOG.warn("Push of {} to {} returned {}", commit.abbreviate(7).name(), remoteUrl, update.getStatus());
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static String toGitPath(Path path) {
+        return path.toString().replace('\\', '/');
+    }
+
+    @Override
+    public void close() {
+        backgroundExecutor.shutdown();
+        synchronized (lock) {
+            if (git != null) {
+                git.close();
+            }
+        }
+    }
+
+    /**
+     * Local commit that was dropped because it conflicted with the remote branch.
+     */
+    public static class DroppedCommit {
+        private final String ref;
+        private final String commitId;
+        private final String author;
+        private final String message;
+        private final long time;
+
+        private DroppedCommit(String ref, RevCommit commit) {
+            this.ref = ref;
+            this.commitId = commit.name();
+            this.author = commit.getAuthorIdent().getName();
+            this.message = commit.getShortMessage();
+            this.time = commit.getAuthorIdent().getWhen().getTime();
+        }
+
+        /**
+         * @return ref in the local clone that keeps the commit
+         */
+        public String getRef() {
+            return ref;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * Local commit that has not been pushed yet.
+     */
+    public static class PendingCommit {
+        private final String commitId;
+        private final String author;
+        private final String message;
+        private final long time;
+        private final boolean authorCredentials;
+
+        private PendingCommit(RevCommit commit, boolean authorCredentials) {
+            this.commitId = commit.name();
+            this.author = commit.getAuthorIdent().getName();
+            this.message = commit.getShortMessage();
+            this.time = commit.getAuthorIdent().getWhen().getTime();
+            this.authorCredentials = authorCredentials;
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public String getAuthor() {
+            return author;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return false if the commit will be pushed with the credentials of another user
+         */
+        public boolean isAuthorCredentials() {
+            return authorCredentials;
+        }
+    }
+
+    public interface ChangeWriter {
+        List<Path> write() throws IOException;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.git;
+
+import org.openehr.adl.am.ArchetypeIdInfo;
+import org.openehr.designer.repository.RepositoryAccessException;
+import org.openehr.designer.repository.RepositoryException;
+import org.openehr.designer.repository.ScmCredentials;
+import org.openehr.designer.repository.SharedTemplateRepository;
+import org.openehr.designer.repository.file.FileTemplateRepository;
+import org.openehr.jaxb.am.Archetype;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Template repository served from the templates directory of a local git clone. Saves are committed to the clone
+ * and pushed in the background.
+ *
+ * @author markopi
+ */
+public class GitTemplateRepository extends FileTemplateRepository implements SharedTemplateRepository {
+    private static final String TEMPLATES_DIRECTORY = "templates";
+
+    private final GitRepositoryClone clone;
+    private final String parent;
+
+    public GitTemplateRepository(GitRepositoryClone clone, String parent) {
+        this.clone = clone;
+        this.parent = parent;
+        setRepositoryLocation(clone.getWorkTree().resolve(TEMPLATES_DIRECTORY).toString());
+    }
+
+    @Override
+    public void init() throws IOException {
+        super.init();
+        clone.addUpdateListener(this::onUpdate);
+    }
+
+    /**
+     * Opens the clone, which may first need to be cloned from the remote repository, and reads the templates.
+     */
+    @Override
+    public void load() {
+        try {
+            clone.open();
+            init();
+        } catch (IOException | RuntimeException e) {
+            getLoadProgress().failed(e);
+            throw e instanceof RepositoryException ? (RepositoryException) e : new RepositoryException(e);
+        }
+    }
+
+    private void onUpdate(Set<String> changedFiles) {
+        String prefix = TEMPLATES_DIRECTORY + "/";
+        // templates are only read from the templates directory itself
+        Set<Path> changedTemplates = changedFiles.stream()
+                .filter(path -> path.startsWith(prefix) && path.indexOf('/', prefix.length()) < 0
+                        && path.endsWith(".adlt"))
+                .map(path -> Paths.get(path.substring(prefix.length())))
+                .collect(Collectors.toSet());
+        if (!changedTemplates.isEmpty()) {
+            reloadTemplateFiles(changedTemplates);
+        }
+    }
+
+    @Override
+    protected Path getTemplateFile(String templateId) {
+        return Paths.get(ArchetypeIdInfo.parse(templateId).toInterfaceString() + ".adlt");
+    }
+
+    @Override
+    public void saveTemplate(List<Archetype> archetypes) {
+        throw new RepositoryAccessException("Templates can only be saved on behalf of a user");
+    }
+
+    @Override
+    public void saveTemplate(List<Archetype> archetypes, ScmCredentials credentials) {
+        String templateId = archetypes.get(0).getArchetypeId().getValue();
+        clone.commit("Committed through adl-designer", credentials, () -> {
+            super.saveTemplate(archetypes);
+            return Collections.singletonList(Paths.get(TEMPLATES_DIRECTORY).resolve(getTemplateFile(templateId)));
+        });
+    }
+
+    @Override
+    public String getParent() {
+        return parent;
+    }
+}
@@ -21,47 +21,100 @@
 package org.openehr.designer.repository.github;
 
 import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.commons.codec.binary.Base64;
+import org.eclipse.egit.github.core.Blob;
 import org.eclipse.egit.github.core.Repository;
 import org.eclipse.egit.github.core.RepositoryBranch;
 import org.eclipse.egit.github.core.RepositoryContents;
 import org.eclipse.egit.github.core.RepositoryId;
+import org.eclipse.egit.github.core.TreeEntry;
 import org.eclipse.egit.github.core.client.GitHubClient;
 import org.eclipse.egit.github.core.client.RequestException;
 import org.openehr.designer.repository.AbstractRepository;
 import org.openehr.designer.repository.RepositoryException;
+import org.openehr.designer.repository.RepositoryLoadProgress;
 import org.openehr.designer.repository.RepositoryNotFoundException;
+import org.openehr.designer.repository.ScmCredentials;
+import org.openehr.designer.repository.ScmRepository;
+import org.openehr.designer.repository.github.egitext.CachingGitHubClient;
+import org.openehr.designer.repository.github.egitext.ExtDataService;
 import org.openehr.designer.repository.github.egitext.ExtRepository;
 import org.openehr.designer.repository.github.egitext.ExtRepositoryService;
+import org.openehr.designer.repository.github.egitext.ExtTree;
 import org.openehr.designer.repository.github.egitext.PushContentsService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import sun.misc.BASE64Decoder;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * @author markopi
  */
-public class AbstractGithubRepository extends AbstractRepository {
+public class AbstractGithubRepository extends AbstractRepository implements ScmRepository {
+    private static final Logger LOG = LoggerFactory.getLogger(AbstractGithubRepository.class);
+    public static final int DEFAULT_DOWNLOAD_THREADS = 4;
+    // recursive trees by repository and commit, so archetype and template repositories loading together share one
+    private static final Cache<String, ExtTree> treeCache = CacheBuilder.newBuilder()
+            .maximumSize(16)
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .build();
 
     protected String branch;
     protected GitHubClient github;
     protected PushContentsService githubContentsService;
     protected ExtRepositoryService githubRepositoryService;
+    protected ExtDataService githubDataService;
 
     protected ExtRepository githubRepository;
+    protected GithubCommitBatcher commitBatcher;
+    protected final RepositoryLoadProgress loadProgress = new RepositoryLoadProgress();
+
+    private boolean useTreeListing = true;
+    private int downloadThreads = DEFAULT_DOWNLOAD_THREADS;
 
+    /**
+     * Sets whether repository files are listed with a single recursive git tree request (default), instead of a
+     * contents request for each directory.
+     */
+    public void setUseTreeListing(boolean useTreeListing) {
+        this.useTreeListing = useTreeListing;
+    }
+
+    /**
+     * Sets the maximum number of concurrent file downloads when the repository metadata is updated.
+     */
+    public void setDownloadThreads(int downloadThreads) {
+        checkArgument(downloadThreads > 0, "downloadThreads: must be at least 1");
+        this.downloadThreads = downloadThreads;
+    }
 
     protected void init(String username, String accessToken, String repo, String branch) {
         try {
             this.branch = branch;
-            github = new GitHubClient();
+            github = new CachingGitHubClient();
             github.setCredentials(username, accessToken);
             githubRepositoryService = new ExtRepositoryService(github);
 
             githubContentsService = new PushContentsService(github);
+            githubDataService = new ExtDataService(github);
 
 
             GithubRepositoryId repoId = GithubRepositoryId.parse(repo);
@@ -74,6 +127,7 @@ public class AbstractGithubRepository extends AbstractRepository {
                 }
                 throw e;
             }
+            commitBatcher = new GithubCommitBatcher(githubDataService, githubRepository, branch);
 //            if (isWritable()) {
 //                createBranchIfNeeded(branch);
 //            }
@@ -83,6 +137,16 @@ public class AbstractGithubRepository extends AbstractRepository {
         }
     }
 
+    /**
+     * Creates a commit batcher that writes to this repository with the given user's credentials, instead of the
+     * credentials the repository was initialized with.
+     */
+    protected GithubCommitBatcher createCommitBatcher(ScmCredentials credentials) {
+        GitHubClient client = new GitHubClient();
+        client.setCredentials(credentials.getUsername(), credentials.getToken());
+        return new GithubCommitBatcher(new ExtDataService(client), githubRepository, branch);
+    }
+
     protected void createBranchIfNeeded(String branch) {
         try {
             List<RepositoryBranch> branches = githubRepositoryService.getBranches(githubRepository);
@@ -122,6 +186,108 @@ public class AbstractGithubRepository extends AbstractRepository {
             }
         }
     }
+
+    /**
+     * Lists files with the given extension anywhere below a directory. The listing is complete: when github
+     * truncates the recursive tree, the directory is listed through the contents api instead.
+     *
+     * @return blob sha by file path
+     */
+    protected Map<String, String> listFiles(String directory, String extension) throws IOException {
+        Map<String, String> result = new LinkedHashMap<>();
+        if (useTreeListing) {
+            ExtTree tree = getRecursiveTree();
+            if (!tree.isTruncated()) {
+                String prefix = directory + "/";
+                for (TreeEntry entry : tree.getTree()) {
+                    if (TreeEntry.TYPE_BLOB.equals(entry.getType()) && entry.getPath().startsWith(prefix)
+                            && entry.getPath().endsWith(extension)) {
+                        result.put(entry.getPath(), entry.getSha());
+                    }
+                }
+                return result;
+            }
+            LOG.warn("Tree of repository {} is truncated, listing {} by directory", toName(githubRepository),
+                    directory);
+        }
+        githubRepositoryFileWalker(githubRepository, directory, branch, (tc) -> {
+            if (tc.getPath().endsWith(extension)) {
+                result.put(tc.getPath(), tc.getSha());
+            }
+        });
+        return result;
+    }
+
+    private ExtTree getRecursiveTree() throws IOException {
+        // trees of a commit never change, unlike the tree of a branch
+        String commitSha = githubDataService.getReference(githubRepository, "heads/" + branch).getObject().getSha();
+        try {
+            return treeCache.get(toName(githubRepository) + "@" + commitSha,
+                    () -> githubDataService.getTree(githubRepository, commitSha, true));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RepositoryException(e.getCause());
+            }
+        }
+    }
+
+    /**
+     * Downloads blobs on a bounded pool and passes the content of each to the consumer. The consumer is called
+     * concurrently from the download threads.
+     *
+     * @param blobShasByPath blob sha by file path
+     * @param consumer       receives file path and content
+     */
+    protected void downloadBlobs(Map<String, String> blobShasByPath, BiConsumer<String, byte[]> consumer) {
+        if (blobShasByPath.isEmpty()) return;
+
+        int threads = Math.min(downloadThreads, blobShasByPath.size());
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+                .setNameFormat("github-download-%d")
+                .setDaemon(true)
+                .build());
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Map.Entry<String, String> entry : blobShasByPath.entrySet()) {
+                futures.add(executor.submit(() -> consumer.accept(entry.getKey(), getBlobContent(entry.getValue()))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RepositoryException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private byte[] getBlobContent(String sha) {
+        try {
+            Blob blob = githubDataService.getBlob(githubRepository, sha);
+            if (Blob.ENCODING_UTF8.equals(blob.getEncoding())) {
+                return blob.getContent().getBytes(Charsets.UTF_8);
+            }
+            return decodeBase64(blob.getContent());
+        } catch (IOException e) {
+            throw new RepositoryException(e);
+        }
+    }
+
+    public RepositoryLoadProgress getLoadProgress() {
+        return loadProgress;
+    }
+
+    @Override
     public String getParent() {
         if (githubRepository.getParent() == null) return null;
         return toName(githubRepository.getParent());
@@ -146,6 +312,7 @@ public class AbstractGithubRepository extends AbstractRepository {
         return decodedBytes;
     }
 
+    @Override
     public boolean isWritable() {
         return githubRepository.getPermissions().isPush();
     }
@@ -1,20 +1,20 @@
 package org.openehr.designer.repository.github;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Charsets;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.apache.commons.lang.SerializationUtils;
 import org.eclipse.egit.github.core.RepositoryContents;
 import org.openehr.adl.am.ArchetypeIdInfo;
 import org.openehr.adl.parser.AdlDeserializer;
 import org.openehr.adl.parser.AdlParserException;
 import org.openehr.adl.serializer.ArchetypeSerializer;
 import org.openehr.designer.repository.*;
-import org.openehr.designer.repository.github.egitext.PushContentsData;
 import org.openehr.jaxb.am.Archetype;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,22 +22,27 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Denko on 11/5/2015.
  */
-public class GithubArchetypeRepository extends AbstractGithubRepository implements ArchetypeRepository {
+public class GithubArchetypeRepository extends AbstractGithubRepository implements SharedArchetypeRepository {
     public static final Logger LOG = LoggerFactory.getLogger(GithubArchetypeRepository.class);
-    private final Cache<String, Archetype> cache = CacheBuilder.newBuilder()
+    private static final String METADATA_FILE = "ArchetypesMetadata.json";
+    // by path, with the blob sha of the content, which serves as the archetype version
+    private final Cache<String, VersionedArchetype> cache = CacheBuilder.newBuilder()
             .expireAfterAccess(1, TimeUnit.HOURS)
             .softValues()
             .build();
-    private Map<String, ArchetypeInfo> archetypeMap = new HashMap<>();
+    private final Map<String, ArchetypeInfo> archetypeMap = new ConcurrentHashMap<>();
     private ObjectMapper objectMapper = new ObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL);
     private AdlDeserializer deserializer = new AdlDeserializer();
+    // guards metadata, which is committed together with each saved archetype
+    private final Object saveLock = new Object();
+    private ArchetypesMetadata metadata;
 
     private static Archetype deserializeArchetype(AdlDeserializer deserializer, byte[] adlsContent) {
         try (ByteArrayInputStream in = new ByteArrayInputStream(adlsContent)) {
@@ -49,92 +54,121 @@ public class GithubArchetypeRepository extends AbstractGithubRepository implemen
     }
 
     public void init(String username, String accessToken, String repo, String branch) {
+        connect(username, accessToken, repo, branch);
+        load();
+    }
+
+    /**
+     * Connects to the repository without reading archetypes. Follow with {@link #load()}.
+     */
+    public void connect(String username, String accessToken, String repo, String branch) {
         super.init(username, accessToken, repo, branch);
+    }
 
-        ArchetypesMetadata ams = getMetadataFile();
-        if (updateMetadataFile(ams)) {
-            if (isWritable()) {
-                saveMetadataFile(ams);
+    /**
+     * Brings archetype metadata up to date with the repository. Archetypes are listed as soon as their metadata is
+     * known, so a partial list is available while the metadata is updated.
+     */
+    @Override
+    public void load() {
+        try {
+            ArchetypesMetadata ams = getMetadataFile();
+            boolean updated = updateMetadataFile(ams);
+            synchronized (saveLock) {
+                // saves wait for the metadata, so none can be committed in between
+                if (updated && isWritable()) {
+                    saveMetadataFile(ams);
+                }
+                metadata = ams;
             }
+            loadProgress.ready();
+        } catch (RuntimeException e) {
+            loadProgress.failed(e);
+            throw e;
         }
+    }
 
-        for (ArchetypeMetadata am : ams.archetypes) {
-            if (!am.isValid()) continue;
-
-            ArchetypeInfo ai = new ArchetypeInfo(am.id, am.rmType, am.name);
-            ai.setLanguages(am.languages);
-            archetypeMap.put(am.id, ai);
-        }
+    private void publish(ArchetypeMetadata am) {
+        ArchetypeInfo ai = new ArchetypeInfo(am.id, am.rmType, am.name);
+        ai.setLanguages(am.languages);
+        archetypeMap.put(am.id, ai);
     }
 
+    /**
+     * Commits refreshed metadata with the credentials the repository was connected with, so the next load does not
+     * download the changed files again. A failed commit only means they are downloaded again.
+     */
     private void saveMetadataFile(ArchetypesMetadata ams) {
         try {
-            PushContentsData data = new PushContentsData();
-            data.setMessage("Update archetypes metadata by adl-designer");
-            data.setContent(encodeBase64(objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(ams)));
-            data.setSha(ams.existingSha);
-            data.setBranch(branch);
-
-            githubContentsService.pushContents(githubRepository, "ArchetypesMetadata.json", data);
-        } catch (IOException e) {
-            throw new RepositoryException(e);
+            commitBatcher.commit("Update archetypes metadata by adl-designer",
+                    Collections.singletonMap(METADATA_FILE, serializeMetadata(ams)));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not save archetype metadata of {}", toName(githubRepository), e);
         }
+    }
 
+    private byte[] serializeMetadata(ArchetypesMetadata ams) throws IOException {
+        return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(ams);
     }
 
     private boolean updateMetadataFile(ArchetypesMetadata ams) {
-        //boolean updated = false;
-        AtomicBoolean updated = new AtomicBoolean(false);
-
         Map<String, ArchetypeMetadata> pathToMetadata = Maps.newHashMap(Maps.uniqueIndex(ams.archetypes, (v) -> v.path));
-        Set<String> existingPaths = new HashSet<>();
         try {
-            AdlDeserializer adlDeserializer = new AdlDeserializer();
-
-            githubRepositoryFileWalker(githubRepository, "archetypes", branch, (tc) -> {
-                        if (!tc.getPath().endsWith(".adls")) return;
-                        ArchetypeMetadata am = pathToMetadata.get(tc.getPath());
-                        if (am == null) {
-                            am = new ArchetypeMetadata();
-                            am.path = tc.getPath();
-                            ams.archetypes.add(am);
-                            pathToMetadata.put(am.path, am);
-                        }
-                        if (!tc.getSha().equals(am.sha)) {
-                            am.sha = tc.getSha();
-                            am.path = tc.getPath();
-
-                            LOG.debug("Updating metadata for {}", tc.getPath());
-                            RepositoryContents fileTc = Iterables.getOnlyElement(
-                                    githubContentsService.getContents(githubRepository, tc.getPath(), branch));
-                            byte[] adlsContent = decodeBase64(fileTc.getContent());
-                            try {
-                                Archetype a = deserializeArchetype(adlDeserializer, adlsContent);
-
-                                am.id = a.getArchetypeId().getValue();
-                                am.name = findTermText(a, a.getDefinition().getNodeId());
-                                am.rmType = a.getDefinition().getRmTypeName();
-                                am.languages = extractLanguages(a);
-                            } catch (AdlParserException e) {
-                                am.id = null; // marks invalid archetype
-                                LOG.error("Error parsing archetype " + tc.getPath() + ". It will not be present in the list of archetypes", e);
-                            }
-                            updated.set(true);
-                        }
-                        existingPaths.add(tc.getPath());
-                    }
-            );
+            Map<String, String> files = listFiles("archetypes", ".adls");
+            loadProgress.addFilesScanned(files.size());
+
+            // only files whose blob sha differs from the metadata are downloaded
+            Map<String, String> changedFiles = new LinkedHashMap<>();
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                ArchetypeMetadata am = pathToMetadata.get(file.getKey());
+                if (am == null) {
+                    am = new ArchetypeMetadata();
+                    am.path = file.getKey();
+                    ams.archetypes.add(am);
+                    pathToMetadata.put(am.path, am);
+                }
+                if (!file.getValue().equals(am.sha)) {
+                    am.sha = file.getValue();
+                    changedFiles.put(file.getKey(), file.getValue());
+                } else if (am.isValid()) {
+                    publish(am);
+                    loadProgress.fileIndexed();
+                } else {
+                    loadProgress.fileFailed();
+                }
+            }
+
+            ThreadLocal<AdlDeserializer> adlDeserializer = ThreadLocal.withInitial(AdlDeserializer::new);
+            downloadBlobs(changedFiles, (path, adlsContent) -> {
+                ArchetypeMetadata am = pathToMetadata.get(path);
+                LOG.debug("Updating metadata for {}", path);
+                try {
+                    Archetype a = deserializeArchetype(adlDeserializer.get(), adlsContent);
+
+                    am.id = a.getArchetypeId().getValue();
+                    am.name = findTermText(a, a.getDefinition().getNodeId());
+                    am.rmType = a.getDefinition().getRmTypeName();
+                    am.languages = extractLanguages(a);
+                    publish(am);
+                    loadProgress.fileParsed();
+                } catch (AdlParserException e) {
+                    am.id = null; // marks invalid archetype
+                    loadProgress.fileFailed();
+                    LOG.error("Error parsing archetype " + path + ". It will not be present in the list of archetypes", e);
+                }
+            });
+            boolean updated = !changedFiles.isEmpty();
 
             // remove deleted archetypes from metadata
             for (Iterator<ArchetypeMetadata> iterator = ams.archetypes.iterator(); iterator.hasNext(); ) {
                 ArchetypeMetadata archetype = iterator.next();
-                if (!existingPaths.contains(archetype.path)) {
+                if (!files.containsKey(archetype.path)) {
                     iterator.remove();
                     LOG.debug("Removing metadata for {}", archetype.path);
-                    updated.set(true);
+                    updated = true;
                 }
             }
-            return updated.get();
+            return updated;
         } catch (IOException e) {
             throw new RepositoryException(e);
         }
@@ -142,12 +176,11 @@ public class GithubArchetypeRepository extends AbstractGithubRepository implemen
 
     private ArchetypesMetadata getMetadataFile() {
         try {
-            RepositoryContents repositoryContents = getFileContentsOrNull("ArchetypesMetadata.json");
+            RepositoryContents repositoryContents = getFileContentsOrNull(METADATA_FILE);
             if (repositoryContents == null) return new ArchetypesMetadata();
 
             ArchetypesMetadata result = objectMapper.readValue(decodeBase64(repositoryContents.getContent()),
                     ArchetypesMetadata.class);
-            result.existingSha = repositoryContents.getSha();
             return result;
         } catch (IOException e) {
             throw new RepositoryException(e);
@@ -157,17 +190,21 @@ public class GithubArchetypeRepository extends AbstractGithubRepository implemen
 
     @Override
     public Archetype getDifferentialArchetype(String archetypeId) {
+        return (Archetype) SerializationUtils.clone(getVersionedArchetype(archetypeId).archetype);
+    }
+
+    private VersionedArchetype getVersionedArchetype(String archetypeId) {
+        String path = createPath(archetypeId);
         try {
-            return cache.get(archetypeId, () -> {
-                String path = createPath(archetypeId);
+            return cache.get(path, () -> {
                 RepositoryContents rc = getFileContentsOrNull(path);
                 if (rc == null) {
                     throw new ArtifactNotFoundException(archetypeId);
                 }
                 byte[] adlsContent = decodeBase64(rc.getContent());
-                return deserializeArchetype(deserializer, adlsContent);
+                return new VersionedArchetype(deserializeArchetype(deserializer, adlsContent), rc.getSha());
             });
-        } catch (ExecutionException e) {
+        } catch (ExecutionException | UncheckedExecutionException e) {
             if (e.getCause() instanceof RuntimeException) {
                 throw (RuntimeException) e.getCause();
             } else {
@@ -183,52 +220,112 @@ public class GithubArchetypeRepository extends AbstractGithubRepository implemen
             throw new RepositoryAccessException("User does not have write access to the repository "
                     + toName(githubRepository));
         }
+        saveDifferentialArchetype(archetype, commitBatcher);
+    }
+
+    @Override
+    public void saveDifferentialArchetype(Archetype archetype, ScmCredentials credentials) {
+        saveDifferentialArchetype(archetype, createCommitBatcher(credentials));
+    }
 
+    private void saveDifferentialArchetype(Archetype archetype, GithubCommitBatcher batcher) {
         String archetypeId = archetype.getArchetypeId().getValue();
 
         String adlsContent = ArchetypeSerializer.serialize(archetype);
         // Check to see if the archetype can still be deserialized
-        deserializer.parse(adlsContent);
+        SaveValidationPolicy.getDefault().validate(SaveValidationPolicy.Kind.ARCHETYPE, adlsContent, deserializer::parse);
 
         String path = createPath(archetypeId);
-        RepositoryContents existing = getFileContentsOrNull(path);
-        PushContentsData pushData = new PushContentsData();
-        pushData.setMessage("Committed through adl-designer");
-        pushData.setContent(encodeBase64(adlsContent));
-        pushData.setSha(existing != null ? existing.getSha() : null);
-        pushData.setBranch(branch);
-        try {
-            githubContentsService.pushContents(githubRepository, path, pushData);
-        } catch (IOException e) {
-            throw new RepositoryException(e);
+        byte[] content = adlsContent.getBytes(Charsets.UTF_8);
+        synchronized (saveLock) {
+            if (metadata == null) {
+                throw new RepositoryException("Repository " + toName(githubRepository)
+                        + " is still loading. Please try again later");
+            }
+            // the shared metadata is replaced only once the commit succeeds
+            ArchetypeMetadata am = new ArchetypeMetadata();
+            am.path = path;
+            am.id = archetypeId;
+            am.name = findTermText(archetype);
+            am.rmType = archetype.getDefinition().getRmTypeName();
+            am.languages = extractLanguages(archetype);
+            // lets the next metadata update recognize the file as unchanged
+            am.sha = GithubCommitBatcher.blobSha(content);
+            ArchetypesMetadata updated = metadata.with(am);
+
+            try {
+                Map<String, byte[]> files = new LinkedHashMap<>();
+                files.put(path, content);
+                files.put(METADATA_FILE, serializeMetadata(updated));
+                batcher.commit("Committed through adl-designer", files);
+            } catch (IOException e) {
+                throw new RepositoryException(e);
+            }
+            metadata = updated;
         }
-        cache.put(archetypeId, archetype);
+        cache.put(path, new VersionedArchetype((Archetype) SerializationUtils.clone(archetype),
+                GithubCommitBatcher.blobSha(content)));
 
-        ArchetypeInfo i = archetypeMap.get(archetypeId);
-        if (i == null) {
-            String rmType = archetype.getDefinition().getRmTypeName();
-            i = new ArchetypeInfo(archetypeId, rmType, findTermText(archetype));
-            archetypeMap.put(archetypeId, i);
-        }
+        ArchetypeInfo i = archetypeMap.computeIfAbsent(archetypeId,
+                id -> new ArchetypeInfo(id, archetype.getDefinition().getRmTypeName(), findTermText(archetype)));
         i.setName(findTermText(archetype));
 
     }
 
+    /**
+     * @return blob sha of the archetype as returned by {@link #getDifferentialArchetype(String)}, so the version
+     * changes as soon as a commit made anywhere is read, or null if there is no such archetype
+     */
+    @Override
+    public String getArchetypeVersion(String archetypeId) {
+        try {
+            return getVersionedArchetype(archetypeId).sha;
+        } catch (ArtifactNotFoundException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public boolean isArchetypeVersionContentDerived() {
+        return true;
+    }
+
+    private String toInterfaceId(String archetypeId) {
+        return ArchetypeIdInfo.parse(archetypeId).toInterfaceString();
+    }
+
     @Override
     public List<ArchetypeInfo> getArchetypeInfos() {
         return new ArrayList<>(archetypeMap.values());
     }
 
     private String createPath(String archetypeId) {
-        String interfaceArchetypeId = ArchetypeIdInfo.parse(archetypeId).toInterfaceString();
-        return "archetypes/" + interfaceArchetypeId + ".adls";
+        return "archetypes/" + toInterfaceId(archetypeId) + ".adls";
+    }
+
+    private static class VersionedArchetype {
+        final Archetype archetype;
+        final String sha;
+
+        VersionedArchetype(Archetype archetype, String sha) {
+            this.archetype = archetype;
+            this.sha = sha;
+        }
     }
 
     private static class ArchetypesMetadata {
         @JsonProperty
         List<ArchetypeMetadata> archetypes = new ArrayList<>();
-        @JsonIgnore
-        String existingSha;
+
+        /**
+         * @return copy of this metadata, with the entry for the same path replaced or added
+         */
+        ArchetypesMetadata with(ArchetypeMetadata am) {
+            ArchetypesMetadata result = new ArchetypesMetadata();
+            archetypes.stream().filter(m -> !m.path.equals(am.path)).forEach(result.archetypes::add);
+            result.archetypes.add(am);
+            return result;
+        }
     }
 
     private static class ArchetypeMetadata {
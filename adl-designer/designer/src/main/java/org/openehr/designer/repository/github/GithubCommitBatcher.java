@@ -0,0 +1,133 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.github;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.apache.commons.codec.binary.Base64;
+import org.eclipse.egit.github.core.Blob;
+import org.eclipse.egit.github.core.Commit;
+import org.eclipse.egit.github.core.IRepositoryIdProvider;
+import org.eclipse.egit.github.core.Reference;
+import org.eclipse.egit.github.core.Tree;
+import org.eclipse.egit.github.core.TreeEntry;
+import org.eclipse.egit.github.core.TypedResource;
+import org.eclipse.egit.github.core.client.RequestException;
+import org.eclipse.egit.github.core.service.DataService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Commits several files to a branch as a single commit, using the git data api. A commit takes a fixed number of
+ * requests: the branch reference, its commit, one blob per file, the tree, the new commit and the reference update.
+ *
+ * @author markopi
+ */
+public class GithubCommitBatcher {
+    private static final Logger LOG = LoggerFactory.getLogger(GithubCommitBatcher.class);
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int HTTP_UNPROCESSABLE_ENTITY = 422;
+
+    private final DataService dataService;
+    private final IRepositoryIdProvider repository;
+    private final String branch;
+
+    public GithubCommitBatcher(DataService dataService, IRepositoryIdProvider repository, String branch) {
+        this.dataService = dataService;
+        this.repository = repository;
+        this.branch = branch;
+    }
+
+    /**
+     * Commits the given files on top of the current branch head. If the branch moves while the commit is being
+     * built, the commit is rebuilt on the new head.
+     *
+     * @param files file content by path within the repository
+     * @return sha of the new commit
+     */
+    public String commit(String message, Map<String, byte[]> files) throws IOException {
+        List<String> blobShas = new ArrayList<>();
+        for (byte[] content : files.values()) {
+            Blob blob = new Blob()
+                    .setEncoding(Blob.ENCODING_BASE64)
+                    .setContent(Base64.encodeBase64String(content));
+            blobShas.add(dataService.createBlob(repository, blob));
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return commitBlobs(message, new ArrayList<>(files.keySet()), blobShas);
+            } catch (RequestException e) {
+                // reference update is rejected when it is not a fast forward
+                if (e.getStatus() != HTTP_UNPROCESSABLE_ENTITY || attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                LOG.info("Branch {} moved during commit, retrying", branch);
+            }
+        }
+    }
+
+    private String commitBlobs(String message, List<String> paths, List<String> blobShas) throws IOException {
+        Reference reference = dataService.getReference(repository, "heads/" + branch);
+        Commit head = dataService.getCommit(repository, reference.getObject().getSha());
+
+        List<TreeEntry> entries = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            TreeEntry entry = new TreeEntry();
+            entry.setPath(paths.get(i));
+            entry.setMode(TreeEntry.MODE_BLOB);
+            entry.setType(TreeEntry.TYPE_BLOB);
+            entry.setSha(blobShas.get(i));
+            entries.add(entry);
+        }
+        Tree tree = dataService.createTree(repository, entries, head.getTree().getSha());
+
+        Commit commit = new Commit()
+                .setMessage(message)
+                .setTree(tree)
+                .setParents(Collections.singletonList(head));
+        Commit created = dataService.createCommit(repository, commit);
+
+        TypedResource target = new TypedResource();
+        target.setType(TypedResource.TYPE_COMMIT);
+        target.setSha(created.getSha());
+        reference.setObject(target);
+        dataService.editReference(repository, reference);
+        return created.getSha();
+    }
+
+    /**
+     * @return sha git assigns to a blob with the given content
+     */
+    public static String blobSha(byte[] content) {
+        Hasher hasher = Hashing.sha1().newHasher();
+        hasher.putBytes(("blob " + content.length + "\0").getBytes(Charsets.US_ASCII));
+        hasher.putBytes(content);
+        return hasher.hash().toString();
+    }
+}
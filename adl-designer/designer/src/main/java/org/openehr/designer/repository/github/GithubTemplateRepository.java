@@ -1,12 +1,10 @@
 package org.openehr.designer.repository.github;
 
-import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import org.apache.commons.codec.binary.Base64;
 import org.eclipse.egit.github.core.RepositoryContents;
@@ -16,115 +14,154 @@ import org.openehr.designer.io.TemplateDeserializer;
 import org.openehr.designer.io.TemplateSerializer;
 import org.openehr.designer.repository.ArtifactNotFoundException;
 import org.openehr.designer.repository.RepositoryAccessException;
+import org.openehr.designer.repository.RepositoryException;
+import org.openehr.designer.repository.SaveValidationPolicy;
+import org.openehr.designer.repository.ScmCredentials;
+import org.openehr.designer.repository.SharedTemplateRepository;
 import org.openehr.designer.repository.TemplateInfo;
-import org.openehr.designer.repository.TemplateRepository;
-import org.openehr.designer.repository.github.egitext.PushContentsData;
 import org.openehr.jaxb.am.Archetype;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Denko on 11/4/2015.
  */
-public class GithubTemplateRepository extends AbstractGithubRepository implements TemplateRepository {
+public class GithubTemplateRepository extends AbstractGithubRepository implements SharedTemplateRepository {
     public static final Logger LOG = LoggerFactory.getLogger(GithubTemplateRepository.class);
+    private static final String METADATA_FILE = "TemplatesMetadata.json";
 
 
-    private Map<String, TemplateInfo> templateMap = new HashMap<>();
+    private final Map<String, TemplateInfo> templateMap = new ConcurrentHashMap<>();
     private ObjectMapper objectMapper = new ObjectMapper();
     private final Cache<String, List<Archetype>> cache = CacheBuilder.newBuilder()
             .expireAfterAccess(1, TimeUnit.HOURS)
             .softValues()
             .build();
+    // guards metadata, which is committed together with each saved template
+    private final Object saveLock = new Object();
+    private TemplatesMetadata metadata;
 
 
     public void init(String username, String accessToken, String repo, String branch) {
+        connect(username, accessToken, repo, branch);
+        load();
+    }
+
+    /**
+     * Connects to the repository without reading templates. Follow with {@link #load()}.
+     */
+    public void connect(String username, String accessToken, String repo, String branch) {
         super.init(username, accessToken, repo, branch);
+    }
 
-        TemplatesMetadata tms = getMetadataFile();
-        if (updateMetadataFile(tms)) {
-            if (isWritable()) {
-                saveMetadataFile(tms);
+    /**
+     * Brings template metadata up to date with the repository. Templates are listed as soon as their metadata is
+     * known, so a partial list is available while the metadata is updated.
+     */
+    @Override
+    public void load() {
+        try {
+            TemplatesMetadata tms = getMetadataFile();
+            boolean updated = updateMetadataFile(tms);
+            synchronized (saveLock) {
+                // saves wait for the metadata, so none can be committed in between
+                if (updated && isWritable()) {
+                    saveMetadataFile(tms);
+                }
+                metadata = tms;
             }
-        }
-
-        for (TemplateMetadata tm : tms.templates) {
-            if (!tm.isValid()) continue;
-
-            templateMap.put(tm.id, new TemplateInfo(tm.id, tm.rmType, tm.name));
+            loadProgress.ready();
+        } catch (RuntimeException e) {
+            loadProgress.failed(e);
+            throw e;
         }
     }
 
+    private void publish(TemplateMetadata tm) {
+        templateMap.put(tm.id, new TemplateInfo(tm.id, tm.rmType, tm.name));
+    }
 
+    /**
+     * Commits refreshed metadata with the credentials the repository was connected with, so the next load does not
+     * download the changed files again. A failed commit only means they are downloaded again.
+     */
     private void saveMetadataFile(TemplatesMetadata tms) {
         try {
-            PushContentsData data = new PushContentsData();
-            data.setMessage("Update templates metadata by adl-designer");
-            data.setContent(encodeBase64(objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(tms)));
-            data.setSha(tms.existingSha);
-            data.setBranch(branch);
-
-            githubContentsService.pushContents(githubRepository, "TemplatesMetadata.json", data);
-            // todo tms.existingSha=
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+            commitBatcher.commit("Update templates metadata by adl-designer",
+                    Collections.singletonMap(METADATA_FILE, serializeMetadata(tms)));
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Could not save template metadata of {}", toName(githubRepository), e);
         }
     }
 
+    private byte[] serializeMetadata(TemplatesMetadata tms) throws IOException {
+        return objectMapper.writerWithDefaultPrettyPrinter().writeValueAsBytes(tms);
+    }
+
 
     private boolean updateMetadataFile(TemplatesMetadata tms) {
-        AtomicBoolean updated = new AtomicBoolean(false);
         Map<String, TemplateMetadata> pathToMetadata = Maps.newHashMap(Maps.uniqueIndex(tms.templates, (v) -> v.path));
-        Set<String> existingPaths = new HashSet<>();
         try {
-            githubRepositoryFileWalker(githubRepository, "templates", branch, (tc) -> {
-                if (!tc.getPath().endsWith(".adlt")) return;
+            Map<String, String> files = listFiles("templates", ".adlt");
+            loadProgress.addFilesScanned(files.size());
 
-                TemplateMetadata tm = pathToMetadata.get(tc.getPath());
+            // only files whose blob sha differs from the metadata are downloaded
+            Map<String, String> changedFiles = new LinkedHashMap<>();
+            for (Map.Entry<String, String> file : files.entrySet()) {
+                TemplateMetadata tm = pathToMetadata.get(file.getKey());
                 if (tm == null) {
                     tm = new TemplateMetadata();
-                    tm.path = tc.getPath();
+                    tm.path = file.getKey();
                     tms.templates.add(tm);
                     pathToMetadata.put(tm.path, tm);
                 }
-                if (!tc.getSha().equals(tm.sha)) {
-                    tm.sha = tc.getSha();
-                    tm.path = tc.getPath();
-
-                    LOG.debug("Updating metadata for {}", tc.getPath());
-                    RepositoryContents fileTc = Iterables.getOnlyElement(
-                            githubContentsService.getContents(githubRepository, tc.getPath(), branch));
-                    String adltContent = new String(Base64.decodeBase64(fileTc.getContent()), Charsets.UTF_8);
-                    try {
-                        List<Archetype> archetypes = TemplateDeserializer.deserialize(adltContent);
-                        Archetype a = archetypes.get(0);
-
-                        tm.id = a.getArchetypeId().getValue();
-                        tm.name = findTermText(a, a.getDefinition().getNodeId());
-                        tm.rmType = a.getDefinition().getRmTypeName();
-                    } catch (AdlException e) {
-                        tm.id = null;
-                        LOG.error("Error parsing template " + tc.getPath() + ". It will not be present in the list of templates", e);
-                    }
-                    updated.set(true);
+                if (!file.getValue().equals(tm.sha)) {
+                    tm.sha = file.getValue();
+                    changedFiles.put(file.getKey(), file.getValue());
+                } else if (tm.isValid()) {
+                    publish(tm);
+                    loadProgress.fileIndexed();
+                } else {
+                    loadProgress.fileFailed();
+                }
+            }
+
+            downloadBlobs(changedFiles, (path, content) -> {
+                TemplateMetadata tm = pathToMetadata.get(path);
+                LOG.debug("Updating metadata for {}", path);
+                String adltContent = new String(content, Charsets.UTF_8);
+                try {
+                    List<Archetype> archetypes = TemplateDeserializer.deserialize(adltContent);
+                    Archetype a = archetypes.get(0);
+
+                    tm.id = a.getArchetypeId().getValue();
+                    tm.name = findTermText(a, a.getDefinition().getNodeId());
+                    tm.rmType = a.getDefinition().getRmTypeName();
+                    publish(tm);
+                    loadProgress.fileParsed();
+                } catch (AdlException e) {
+                    tm.id = null;
+                    loadProgress.fileFailed();
+                    LOG.error("Error parsing template " + path + ". It will not be present in the list of templates", e);
                 }
-                existingPaths.add(tc.getPath());
             });
+            boolean updated = !changedFiles.isEmpty();
+
             for (Iterator<TemplateMetadata> iterator = tms.templates.iterator(); iterator.hasNext(); ) {
                 TemplateMetadata template = iterator.next();
-                if (!existingPaths.contains(template.path)) {
+                if (!files.containsKey(template.path)) {
                     iterator.remove();
                     LOG.debug("Removing metadata for {}", template.path);
-                    updated.set(true);
+                    updated = true;
                 }
             }
-            return updated.get();
+            return updated;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
@@ -132,12 +169,11 @@ public class GithubTemplateRepository extends AbstractGithubRepository implement
 
     private TemplatesMetadata getMetadataFile() {
         try {
-            RepositoryContents repositoryContents = getFileContentsOrNull("TemplatesMetadata.json");
+            RepositoryContents repositoryContents = getFileContentsOrNull(METADATA_FILE);
             if (repositoryContents == null) return new TemplatesMetadata();
 
             TemplatesMetadata result = objectMapper.readValue(Base64.decodeBase64(repositoryContents.getContent()),
                     TemplatesMetadata.class);
-            result.existingSha = repositoryContents.getSha();
             return result;
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -157,36 +193,59 @@ public class GithubTemplateRepository extends AbstractGithubRepository implement
             throw new RepositoryAccessException("User does not have write access to the repository "
                     + toName(githubRepository));
         }
+        saveTemplate(archetypes, commitBatcher);
+    }
+
+    @Override
+    public void saveTemplate(List<Archetype> archetypes, ScmCredentials credentials) {
+        saveTemplate(archetypes, createCommitBatcher(credentials));
+    }
+
+    private void saveTemplate(List<Archetype> archetypes, GithubCommitBatcher batcher) {
         Archetype a = archetypes.get(0);
         String templateId = a.getArchetypeId().getValue();
 
         String adltContent = TemplateSerializer.serialize(archetypes);
         // Check to see if the template can still be deserialized
-        TemplateDeserializer.deserialize(adltContent);
+        SaveValidationPolicy.getDefault().validate(SaveValidationPolicy.Kind.TEMPLATE, adltContent,
+                TemplateDeserializer::deserialize);
 
 
         String path = createPath(templateId);
-        RepositoryContents existing = getFileContentsOrNull(path);
-        PushContentsData pushData = new PushContentsData();
-        pushData.setMessage("Committed through adl-designer");
-        pushData.setContent(encodeBase64(adltContent));
-        pushData.setSha(existing != null ? existing.getSha() : null);
-        pushData.setBranch(branch);
-        try {
-            githubContentsService.pushContents(githubRepository, path, pushData);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+        byte[] content = adltContent.getBytes(Charsets.UTF_8);
+        synchronized (saveLock) {
+            if (metadata == null) {
+                throw new RepositoryException("Repository " + toName(githubRepository)
+                        + " is still loading. Please try again later");
+            }
+            // the shared metadata is replaced only once the commit succeeds
+            TemplateMetadata tm = new TemplateMetadata();
+            tm.path = path;
+            tm.id = templateId;
+            tm.name = findTermText(a, a.getDefinition().getNodeId());
+            tm.rmType = a.getDefinition().getRmTypeName();
+            // lets the next metadata update recognize the file as unchanged
+            tm.sha = GithubCommitBatcher.blobSha(content);
+            TemplatesMetadata updated = metadata.with(tm);
+
+            try {
+                Map<String, byte[]> files = new LinkedHashMap<>();
+                files.put(path, content);
+                files.put(METADATA_FILE, serializeMetadata(updated));
+                batcher.commit("Committed through adl-designer", files);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            metadata = updated;
         }
         cache.put(templateId, archetypes);
 
-        TemplateInfo i = templateMap.get(templateId);
-        if (i == null) {
-            String rmType = a.getDefinition().getRmTypeName();
-            i = new TemplateInfo();
-            i.setTemplateId(templateId);
-            i.setRmType(rmType);
-            templateMap.put(templateId, i);
-        }
+        TemplateInfo i = templateMap.computeIfAbsent(templateId, id -> {
+            TemplateInfo info = new TemplateInfo();
+            info.setTemplateId(id);
+            info.setRmType(a.getDefinition().getRmTypeName());
+            return info;
+        });
         i.setName(findTermText(a, a.getDefinition().getNodeId()));
 
     }
@@ -222,8 +281,16 @@ public class GithubTemplateRepository extends AbstractGithubRepository implement
     private static class TemplatesMetadata {
         @JsonProperty
         List<TemplateMetadata> templates = new ArrayList<>();
-        @JsonIgnore
-        String existingSha;
+
+        /**
+         * @return copy of this metadata, with the entry for the same path replaced or added
+         */
+        TemplatesMetadata with(TemplateMetadata tm) {
+            TemplatesMetadata result = new TemplatesMetadata();
+            templates.stream().filter(m -> !m.path.equals(tm.path)).forEach(result.templates::add);
+            result.templates.add(tm);
+            return result;
+        }
     }
 
     private static class TemplateMetadata {
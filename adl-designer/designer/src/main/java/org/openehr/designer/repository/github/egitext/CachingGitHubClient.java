@@ -0,0 +1,155 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.github.egitext;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.eclipse.egit.github.core.client.GitHubClient;
+import org.eclipse.egit.github.core.client.GitHubRequest;
+import org.eclipse.egit.github.core.client.GitHubResponse;
+import org.eclipse.egit.github.core.client.PagedRequest;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.Objects;
+
+/**
+ * GitHub client that remembers ETags and bodies of GET responses and sends conditional requests. A
+ * 304 Not Modified response is served from the remembered body, and does not count against the rate limit.
+ * <p>
+ * Remembered responses are shared between clients with the same credentials, so a body fetched by one user is never
+ * served to another.
+ *
+ * @author markopi
+ */
+public class CachingGitHubClient extends GitHubClient {
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final long MAX_CACHED_BYTES = 32 * 1024 * 1024;
+
+    private static final Cache<CacheKey, CachedResponse> responseCache = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_BYTES)
+            .weigher((CacheKey key, CachedResponse response) -> response.body.length)
+            .build();
+
+    // identifies the credentials without keeping them, empty for anonymous access
+    private String principal = "";
+
+    @Override
+    public GitHubClient setCredentials(String user, String password) {
+        principal = hashCredentials("basic", user + ":" + password);
+        return super.setCredentials(user, password);
+    }
+
+    @Override
+    public GitHubClient setOAuth2Token(String token) {
+        principal = hashCredentials("token", token);
+        return super.setOAuth2Token(token);
+    }
+
+    private static String hashCredentials(String scheme, String credentials) {
+        return scheme + ":" + Hashing.sha256().hashString(String.valueOf(credentials), Charsets.UTF_8);
+    }
+
+    @Override
+    public GitHubResponse get(GitHubRequest request) throws IOException {
+        // paged responses depend on link headers, which are not remembered
+        if (request instanceof PagedRequest) {
+            return super.get(request);
+        }
+
+        CacheKey key = new CacheKey(principal, request.generateUri(), request.getResponseContentType());
+        CachedResponse cached = responseCache.getIfPresent(key);
+
+        HttpURLConnection httpRequest = createGet(key.uri);
+        if (key.accept != null) {
+            httpRequest.setRequestProperty(HEADER_ACCEPT, key.accept);
+        }
+        if (cached != null) {
+            httpRequest.setRequestProperty(HEADER_IF_NONE_MATCH, cached.etag);
+        }
+        int code = httpRequest.getResponseCode();
+        updateRateLimits(httpRequest);
+
+        if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+            return new GitHubResponse(httpRequest, getBody(request, new ByteArrayInputStream(cached.body)));
+        }
+        if (isOk(code)) {
+            byte[] body;
+            try (InputStream in = getStream(httpRequest)) {
+                body = ByteStreams.toByteArray(in);
+            }
+            String etag = httpRequest.getHeaderField(HEADER_ETAG);
+            if (etag != null) {
+                responseCache.put(key, new CachedResponse(etag, body));
+            } else {
+                responseCache.invalidate(key);
+            }
+            return new GitHubResponse(httpRequest, getBody(request, new ByteArrayInputStream(body)));
+        }
+        if (isEmpty(code)) {
+            return new GitHubResponse(httpRequest, null);
+        }
+        throw createException(getStream(httpRequest), code, httpRequest.getResponseMessage());
+    }
+
+    private static final class CacheKey {
+        final String principal;
+        final String uri;
+        final String accept;
+
+        CacheKey(String principal, String uri, String accept) {
+            this.principal = principal;
+            this.uri = uri;
+            this.accept = accept;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            CacheKey cacheKey = (CacheKey) o;
+            return Objects.equals(principal, cacheKey.principal) &&
+                    Objects.equals(uri, cacheKey.uri) &&
+                    Objects.equals(accept, cacheKey.accept);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(principal, uri, accept);
+        }
+    }
+
+    private static final class CachedResponse {
+        final String etag;
+        final byte[] body;
+
+        CachedResponse(String etag, byte[] body) {
+            this.etag = etag;
+            this.body = body;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.github.egitext;
+
+import org.eclipse.egit.github.core.IRepositoryIdProvider;
+import org.eclipse.egit.github.core.client.GitHubClient;
+import org.eclipse.egit.github.core.client.GitHubRequest;
+import org.eclipse.egit.github.core.service.DataService;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.eclipse.egit.github.core.client.IGitHubConstants.SEGMENT_REPOS;
+
+/**
+ * @author markopi
+ */
+public class ExtDataService extends DataService {
+    public ExtDataService() {
+    }
+
+    public ExtDataService(GitHubClient client) {
+        super(client);
+    }
+
+    @Override
+    public ExtTree getTree(IRepositoryIdProvider repository, String sha, boolean recursive) throws IOException {
+        String id = getId(repository);
+        if (sha == null || sha.isEmpty()) {
+            throw new IllegalArgumentException("SHA-1 cannot be null or empty");
+        }
+        GitHubRequest request = createRequest();
+        request.setUri(SEGMENT_REPOS + '/' + id + "/git/trees/" + sha);
+        if (recursive) {
+            request.setParams(Collections.singletonMap("recursive", "1"));
+        }
+        request.setType(ExtTree.class);
+        return (ExtTree) client.get(request).getBody();
+    }
+}
@@ -66,6 +66,9 @@ public class AppController {
         UserService userService = new UserService(github);
         User user = userService.getUser();
         ctx.setUsername(user.getLogin());
+        // users without a public email get the noreply address github itself uses for their web commits
+        ctx.setEmail(user.getEmail() != null ? user.getEmail()
+                : user.getId() + "+" + user.getLogin() + "@users.noreply.github.com");
 
 //        UserRepositoriesConfiguration repositories = userConfigurationService.getRepositoriesConfiguration(ctx.getUsername());
 //        String repoName = repositories.findByName(repositories.getLastRepository())
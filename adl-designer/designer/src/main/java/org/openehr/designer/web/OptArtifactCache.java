@@ -0,0 +1,308 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.web;
+
+import com.google.common.base.Charsets;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.openehr.adl.am.ArchetypeIdInfo;
+import org.openehr.adl.serializer.ArchetypeSerializer;
+import org.openehr.designer.io.TemplateSerializer;
+import org.openehr.designer.io.opt.OptBuilder;
+import org.openehr.designer.repository.FlatArchetypeRepository;
+import org.openehr.jaxb.am.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Opt files built from saved templates, kept on disk with the most recently used ones also in memory. An opt is
+ * identified by the repository and id of its template, the content of the template, the content of the flat forms of
+ * all repository archetypes the template references and the version of the opt builder. Saving a template or an
+ * archetype therefore changes the key of every opt it affects; {@link #invalidateTemplate} and
+ * {@link #invalidateArchetype} additionally drop the entries that can no longer be used. Only the latest opt of each
+ * template is kept on disk.
+ *
+ * @author markopi
+ */
+public class OptArtifactCache {
+    private static final Logger LOG = LoggerFactory.getLogger(OptArtifactCache.class);
+    private static final String FILE_SUFFIX = ".opt";
+    private static final int MAX_ARCHETYPE_HASHES = 2000;
+
+    private final Path directory;
+    private final Cache<Key, OptBuilder.Opt> memory;
+    // content hash of flat archetypes, by repository, archetype id and content derived flat archetype version
+    private final Cache<String, String> archetypeHashes = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ARCHETYPE_HASHES)
+            .build();
+    // template keys by the interface ids of the repository archetypes they reference
+    private final ConcurrentMap<String, Set<String>> templatesByArchetype = new ConcurrentHashMap<>();
+    private final Object diskLock = new Object();
+
+    /**
+     * @param directory      where opt files are stored
+     * @param maxMemoryBytes maximum total size of opt files kept in memory
+     */
+    public OptArtifactCache(Path directory, long maxMemoryBytes) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+        memory = CacheBuilder.newBuilder()
+                .maximumWeight(maxMemoryBytes)
+                .<Key, OptBuilder.Opt>weigher((k, opt) -> opt.getContent().length)
+                .build();
+    }
+
+    /**
+     * Computes the key of the opt of a saved template.
+     *
+     * @param repository         repository the template is saved in
+     * @param templateArchetypes differential archetypes of the template, as saved
+     * @param executor           serializes template archetypes for hashing, may be null
+     * @return key, or null if the opt cannot be cached, for example because a referenced archetype is missing
+     */
+    @Nullable
+    public Key key(String repository, List<Archetype> templateArchetypes, FlatArchetypeRepository flatArchetypes,
+                   OptBuilder optBuilder, @Nullable Executor executor) throws IOException {
+        String templateId = templateArchetypes.get(0).getArchetypeId().getValue();
+        Set<String> referencedArchetypeIds = getReferencedArchetypeIds(templateArchetypes);
+
+        Hasher hasher = Hashing.sha1().newHasher()
+                .putString(optBuilder.getVersion(), Charsets.UTF_8)
+                .putChar('\n');
+        try (OutputStream out = Funnels.asOutputStream(hasher)) {
+            TemplateSerializer.serialize(templateArchetypes, out, executor);
+        }
+        for (String archetypeId : referencedArchetypeIds) {
+            String archetypeHash;
+            try {
+                archetypeHash = getFlatArchetypeHash(repository, flatArchetypes, archetypeId);
+            } catch (RuntimeException e) {
+                LOG.debug("Opt of template {} will not be cached, archetype {} cannot be read", templateId,
+                        archetypeId, e);
+                return null;
+            }
+            hasher.putChar('\n').putString(archetypeId, Charsets.UTF_8).putChar('=').putString(archetypeHash,
+                    Charsets.UTF_8);
+        }
+        return new Key(templatePrefix(repository, templateId), hasher.hash().toString(), referencedArchetypeIds);
+    }
+
+    @Nullable
+    public OptBuilder.Opt get(Key key) {
+        OptBuilder.Opt result = memory.getIfPresent(key);
+        if (result != null) return result;
+
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(getFile(key)))) {
+            String templateId = in.readUTF();
+            result = new OptBuilder.Opt(templateId, ByteStreams.toByteArray(in));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            LOG.warn("Could not read cached opt {}", getFile(key), e);
+            return null;
+        }
+        memory.put(key, result);
+        return result;
+    }
+
+    /**
+     * Stores an opt, replacing any other opt of the same template in the same repository.
+     */
+    public void put(Key key, OptBuilder.Opt opt) {
+        memory.put(key, opt);
+        for (String archetypeId : key.referencedArchetypeIds) {
+            templatesByArchetype.computeIfAbsent(archetypeId, id -> ConcurrentHashMap.newKeySet()).add(key.templatePrefix);
+        }
+        Path file = getFile(key);
+        try {
+            Path temp = Files.createTempFile(directory, ".store-", FILE_SUFFIX + ".tmp");
+            try {
+                try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(temp))) {
+                    out.writeUTF(opt.getTemplateId());
+                    out.write(opt.getContent());
+                }
+                synchronized (diskLock) {
+                    Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    deleteFiles(key.templatePrefix, file);
+                }
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not store opt {}", file, e);
+        }
+        memory.asMap().keySet().removeIf(k -> k.templatePrefix.equals(key.templatePrefix) && !k.equals(key));
+    }
+
+    /**
+     * Drops cached opts of a template, called when the template is saved.
+     */
+    public void invalidateTemplate(String repository, String templateId) {
+        invalidate(templatePrefix(repository, templateId));
+    }
+
+    /**
+     * Drops cached opts of templates that reference an archetype, called when the archetype is saved.
+     */
+    public void invalidateArchetype(String archetypeId) {
+        Set<String> templatePrefixes = templatesByArchetype.remove(toInterfaceId(archetypeId));
+        if (templatePrefixes != null) {
+            templatePrefixes.forEach(this::invalidate);
+        }
+    }
+
+    private void invalidate(String templatePrefix) {
+        memory.asMap().keySet().removeIf(k -> k.templatePrefix.equals(templatePrefix));
+        synchronized (diskLock) {
+            try {
+                deleteFiles(templatePrefix, null);
+            } catch (IOException e) {
+                LOG.warn("Could not delete cached opts in {}", directory, e);
+            }
+        }
+    }
+
+    private void deleteFiles(String templatePrefix, @Nullable Path except) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, templatePrefix + "-*" + FILE_SUFFIX)) {
+            for (Path file : files) {
+                if (!file.equals(except)) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private String getFlatArchetypeHash(String repository, FlatArchetypeRepository flatArchetypes,
+                                        String archetypeId) {
+        String version = flatArchetypes.getFlatArchetypeVersion(archetypeId);
+        // other versions, such as file modification times, could repeat for different content
+        if (version == null || !flatArchetypes.isArchetypeVersionContentDerived()) {
+            return hashFlatArchetype(flatArchetypes, archetypeId);
+        }
+        try {
+            return archetypeHashes.get(repository + "/" + archetypeId + "@" + version,
+                    () -> hashFlatArchetype(flatArchetypes, archetypeId));
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private static String hashFlatArchetype(FlatArchetypeRepository flatArchetypes, String archetypeId) {
+        String adl = ArchetypeSerializer.serialize(flatArchetypes.getFlatArchetype(archetypeId));
+        return Hashing.sha1().hashString(adl, Charsets.UTF_8).toString();
+    }
+
+    // repository archetypes used by the template: parents of its archetypes and archetype roots that are not overlays
+    private static SortedSet<String> getReferencedArchetypeIds(List<Archetype> templateArchetypes) {
+        Set<String> templateArchetypeIds = new TreeSet<>();
+        for (Archetype archetype : templateArchetypes) {
+            templateArchetypeIds.add(toInterfaceId(archetype.getArchetypeId().getValue()));
+        }
+        SortedSet<String> result = new TreeSet<>();
+        for (Archetype archetype : templateArchetypes) {
+            if (archetype.getParentArchetypeId() != null && archetype.getParentArchetypeId().getValue() != null) {
+                result.add(toInterfaceId(archetype.getParentArchetypeId().getValue()));
+            }
+            collectArchetypeRefs(archetype.getDefinition(), result);
+        }
+        result.removeAll(templateArchetypeIds);
+        return result;
+    }
+
+    private static void collectArchetypeRefs(CObject cobj, Set<String> target) {
+        if (cobj instanceof CArchetypeRoot && ((CArchetypeRoot) cobj).getArchetypeRef() != null) {
+            target.add(toInterfaceId(((CArchetypeRoot) cobj).getArchetypeRef()));
+        }
+        if (cobj instanceof CComplexObject) {
+            for (CAttribute attribute : ((CComplexObject) cobj).getAttributes()) {
+                for (CObject child : attribute.getChildren()) {
+                    collectArchetypeRefs(child, target);
+                }
+            }
+        }
+    }
+
+    private static String toInterfaceId(String archetypeId) {
+        return ArchetypeIdInfo.parse(archetypeId).toInterfaceString();
+    }
+
+    private static String templatePrefix(String repository, String templateId) {
+        return Hashing.sha1().hashString(repository + "\n" + templateId, Charsets.UTF_8).toString();
+    }
+
+    private Path getFile(Key key) {
+        return directory.resolve(key.templatePrefix + "-" + key.hash + FILE_SUFFIX);
+    }
+
+    public static class Key {
+        private final String templatePrefix;
+        private final String hash;
+        private final Set<String> referencedArchetypeIds;
+
+        private Key(String templatePrefix, String hash, Set<String> referencedArchetypeIds) {
+            this.templatePrefix = templatePrefix;
+            this.hash = hash;
+            this.referencedArchetypeIds = Collections.unmodifiableSet(referencedArchetypeIds);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return templatePrefix.equals(key.templatePrefix) && hash.equals(key.hash);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * templatePrefix.hashCode() + hash.hashCode();
+        }
+    }
+}
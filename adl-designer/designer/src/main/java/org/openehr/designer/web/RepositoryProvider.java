@@ -2,35 +2,98 @@ package org.openehr.designer.web;
 
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.eclipse.egit.github.core.Repository;
 import org.eclipse.egit.github.core.RepositoryId;
 import org.eclipse.egit.github.core.client.GitHubClient;
+import org.eclipse.egit.github.core.client.RequestException;
+import org.eclipse.jgit.transport.UsernamePasswordCredentialsProvider;
+import org.openehr.designer.Configuration;
 import org.openehr.designer.repository.ArchetypeRepository;
+import org.openehr.designer.repository.FlatArchetypeRepository;
 import org.openehr.designer.repository.RepositoryException;
+import org.openehr.designer.repository.RepositoryLoadProgress;
+import org.openehr.designer.repository.RepositoryNotFoundException;
+import org.openehr.designer.repository.ScmCredentials;
+import org.openehr.designer.repository.SharedArchetypeRepository;
+import org.openehr.designer.repository.SharedRepository;
+import org.openehr.designer.repository.SharedTemplateRepository;
 import org.openehr.designer.repository.TemplateRepository;
+import org.openehr.designer.repository.UserArchetypeRepository;
+import org.openehr.designer.repository.UserTemplateRepository;
+import org.openehr.designer.repository.WriteBehindArchetypeRepository;
 import org.openehr.designer.repository.github.GithubArchetypeRepository;
 import org.openehr.designer.repository.github.GithubRepositoryId;
 import org.openehr.designer.repository.github.GithubTemplateRepository;
+import org.openehr.designer.repository.git.GitArchetypeRepository;
+import org.openehr.designer.repository.git.GitRepositoryClone;
+import org.openehr.designer.repository.git.GitTemplateRepository;
+import org.openehr.designer.repository.github.egitext.ExtRepository;
 import org.openehr.designer.repository.github.egitext.ExtRepositoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
 /**
  * Created by Denko on 10/28/2015.
  */
 public class RepositoryProvider {
-    public static Cache<RepoKey, GithubTemplateRepository> userToTemplateRepositoryMap =
-            CacheBuilder.<RepoKey, GithubTemplateRepository>newBuilder()
+    private static final Logger LOG = LoggerFactory.getLogger(RepositoryProvider.class);
+    // repositories shared by all users of a repository branch, created with the credentials of the first user
+    private static Cache<RepoKey, SharedTemplateRepository> sharedTemplateRepositoryMap =
+            CacheBuilder.<RepoKey, SharedTemplateRepository>newBuilder()
                     .expireAfterAccess(1, TimeUnit.DAYS)
                     .build();
-    public static Cache<RepoKey, GithubArchetypeRepository> userToArchetypeRepositoryMap =
-            CacheBuilder.<RepoKey, GithubArchetypeRepository>newBuilder()
+    private static Cache<RepoKey, SharedArchetypeRepository> sharedArchetypeRepositoryMap =
+            CacheBuilder.<RepoKey, SharedArchetypeRepository>newBuilder()
                     .expireAfterAccess(1, TimeUnit.DAYS)
                     .build();
+    // per user views of the shared repositories, with the user's credentials and permissions
+    public static Cache<UserRepoKey, TemplateRepository> userToTemplateRepositoryMap =
+            CacheBuilder.<UserRepoKey, TemplateRepository>newBuilder()
+                    .expireAfterAccess(1, TimeUnit.DAYS)
+                    .build();
+    public static Cache<UserRepoKey, ArchetypeRepository> userToArchetypeRepositoryMap =
+            CacheBuilder.<UserRepoKey, ArchetypeRepository>newBuilder()
+                    .expireAfterAccess(1, TimeUnit.DAYS)
+                    .removalListener((RemovalListener<UserRepoKey, ArchetypeRepository>) n -> {
+                        if (n.getValue() instanceof WriteBehindArchetypeRepository) {
+                            ((WriteBehindArchetypeRepository) n.getValue()).close();
+                        }
+                    })
+                    .build();
+    // local clones used by the git backend, shared by the archetype and template repository
+    private static Cache<RepoKey, GitRepositoryClone> gitCloneMap =
+            CacheBuilder.<RepoKey, GitRepositoryClone>newBuilder()
+                    .expireAfterAccess(1, TimeUnit.DAYS)
+                    .removalListener((RemovalListener<RepoKey, GitRepositoryClone>) n -> n.getValue().close())
+                    .build();
+    private static final long GIT_UPDATE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+    // one flat archetype cache per archetype repository instance
+    private static Cache<ArchetypeRepository, FlatArchetypeRepository> flatArchetypeRepositoryMap =
+            CacheBuilder.newBuilder()
+                    .weakKeys()
+                    .build();
+    // loads shared repositories in the background, so choosing a large repository does not block the request
+    private static final ExecutorService loadExecutor = Executors.newFixedThreadPool(
+            Configuration.getInt("repository.load.threads", 2), new ThreadFactoryBuilder()
+                    .setNameFormat("repository-loader-%d")
+                    .setDaemon(true)
+                    .build());
     public static final String BRANCH="master";
 
     public TemplateRepository getTemplateRepository(SessionContext conf) {
@@ -41,6 +104,15 @@ public class RepositoryProvider {
         return getArchetypeRepository(conf, conf.getGithubRepository());
     }
 
+    public FlatArchetypeRepository getFlatArchetypeRepository(SessionContext conf) {
+        ArchetypeRepository archetypeRepository = getArchetypeRepository(conf);
+        // plain user views read from the shared repository, so they can share its flat archetypes as well
+        ArchetypeRepository source = archetypeRepository instanceof UserArchetypeRepository
+                ? ((UserArchetypeRepository) archetypeRepository).getShared()
+                : archetypeRepository;
+        return computeIfAbsent(flatArchetypeRepositoryMap, source, () -> new FlatArchetypeRepository(source));
+    }
+
     private <K, V> V computeIfAbsent(Cache<K, V> cache, K key, Callable<V> supplier) {
         try {
             return cache.get(key, supplier);
@@ -54,22 +126,205 @@ public class RepositoryProvider {
     }
 
     public TemplateRepository getTemplateRepository(SessionContext conf, String repositoryName) {
-        return computeIfAbsent(userToTemplateRepositoryMap, new RepoKey(BRANCH, repositoryName), () -> {
-            GithubTemplateRepository r = new GithubTemplateRepository();
-            r.init(conf.getUsername(), conf.getGithubToken(), repositoryName, BRANCH);
-            return r;
-        });
+        RepoKey key = new RepoKey(BRANCH, repositoryName);
+        invalidateIfLoadFailed(sharedTemplateRepositoryMap, userToTemplateRepositoryMap, key);
+        TemplateRepository result = computeIfAbsent(userToTemplateRepositoryMap,
+                new UserRepoKey(conf.getUsername(), key), () -> {
+                    // also checks that the user can see the repository
+                    ExtRepository repository = getGithubRepository(conf, repositoryName);
+                    SharedTemplateRepository shared = computeIfAbsent(sharedTemplateRepositoryMap, key,
+                            () -> loadInBackground(createTemplateRepository(conf, key, repository)));
+                    return new UserTemplateRepository(shared, getCredentials(conf),
+                            repository.getPermissions().isPush());
+                });
+        if (isGitBackend()) {
+            updateGitClone(key);
+        }
+        return result;
+    }
+
+    private SharedTemplateRepository createTemplateRepository(SessionContext conf, RepoKey key,
+                                                              ExtRepository repository) {
+        if (isGitBackend()) {
+            return new GitTemplateRepository(getGitClone(conf, key, repository), getParentName(repository));
+        }
+        GithubTemplateRepository r = new GithubTemplateRepository();
+        r.connect(conf.getUsername(), conf.getGithubToken(), key.repositoryName, key.branch);
+        return r;
     }
 
     public ArchetypeRepository getArchetypeRepository(SessionContext conf, String repositoryName) {
+        RepoKey key = new RepoKey(BRANCH, repositoryName);
+        UserRepoKey userKey = new UserRepoKey(conf.getUsername(), key);
+        invalidateIfLoadFailed(sharedArchetypeRepositoryMap, userToArchetypeRepositoryMap, key);
+        ArchetypeRepository result = computeIfAbsent(userToArchetypeRepositoryMap, userKey, () -> {
+            // also checks that the user can see the repository
+            ExtRepository repository = getGithubRepository(conf, repositoryName);
+            SharedArchetypeRepository shared = computeIfAbsent(sharedArchetypeRepositoryMap, key,
+                    () -> loadInBackground(createArchetypeRepository(conf, key, repository)));
+            return writeBehindIfEnabled(userKey, new UserArchetypeRepository(shared, getCredentials(conf),
+                    repository.getPermissions().isPush()));
+        });
+        if (isGitBackend()) {
+            updateGitClone(key);
+        }
+        return result;
+    }
 
-        return computeIfAbsent(userToArchetypeRepositoryMap, new RepoKey(BRANCH, repositoryName), () -> {
-            GithubArchetypeRepository r = new GithubArchetypeRepository();
-            r.init(conf.getUsername(), conf.getGithubToken(), repositoryName, BRANCH);
+    private SharedArchetypeRepository createArchetypeRepository(SessionContext conf, RepoKey key,
+                                                                ExtRepository repository) {
+        if (isGitBackend()) {
+            GitArchetypeRepository r = new GitArchetypeRepository(getGitClone(conf, key, repository),
+                    getParentName(repository));
+            r.setParseThreads(Configuration.getInt("repository.parse.threads",
+                    Runtime.getRuntime().availableProcessors()));
             return r;
+        }
+        GithubArchetypeRepository r = new GithubArchetypeRepository();
+        r.connect(conf.getUsername(), conf.getGithubToken(), key.repositoryName, key.branch);
+        return r;
+    }
+
+    private <S extends SharedRepository> S loadInBackground(S repository) {
+        loadExecutor.execute(() -> {
+            try {
+                repository.load();
+            } catch (RuntimeException e) {
+                LOG.error("Could not load repository", e);
+            }
+        });
+        return repository;
+    }
+
+    /**
+     * Drops a shared repository that could not be loaded, together with all user views of it, so the next access
+     * loads it again.
+     */
+    private <S extends SharedRepository> void invalidateIfLoadFailed(Cache<RepoKey, S> sharedMap,
+                                                                     Cache<UserRepoKey, ?> userMap, RepoKey key) {
+        S shared = sharedMap.getIfPresent(key);
+        if (shared != null && shared.getLoadProgress().getState() == RepositoryLoadProgress.State.FAILED) {
+            sharedMap.invalidate(key);
+            userMap.asMap().keySet().removeIf(k -> k.repo.equals(key));
+        }
+    }
+
+    /**
+     * @return load progress of the archetypes of the current repository, or null if they are not being loaded
+     */
+    @Nullable
+    public RepositoryLoadProgress getArchetypeLoadProgress(SessionContext conf) {
+        SharedArchetypeRepository shared = sharedArchetypeRepositoryMap.getIfPresent(
+                new RepoKey(BRANCH, conf.getGithubRepository()));
+        return shared != null ? shared.getLoadProgress() : null;
+    }
+
+    /**
+     * @return load progress of the templates of the current repository, or null if they are not being loaded
+     */
+    @Nullable
+    public RepositoryLoadProgress getTemplateLoadProgress(SessionContext conf) {
+        SharedTemplateRepository shared = sharedTemplateRepositoryMap.getIfPresent(
+                new RepoKey(BRANCH, conf.getGithubRepository()));
+        return shared != null ? shared.getLoadProgress() : null;
+    }
+
+    /**
+     * @return commits of the current user that were dropped from the local clone of the current repository because
+     * they conflicted with the remote branch. Always empty unless the git backend is used.
+     */
+    public List<GitRepositoryClone.DroppedCommit> getDroppedCommits(SessionContext conf) {
+        GitRepositoryClone clone = gitCloneMap.getIfPresent(new RepoKey(BRANCH, conf.getGithubRepository()));
+        if (clone == null) return Collections.emptyList();
+        return clone.getDroppedCommits().stream()
+                .filter(c -> c.getAuthor().equals(conf.getUsername()))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @return commits of the current user that have been saved to the local clone of the current repository but not
+     * pushed yet. Always empty unless the git backend is used.
+     */
+    public List<GitRepositoryClone.PendingCommit> getPendingCommits(SessionContext conf) {
+        GitRepositoryClone clone = gitCloneMap.getIfPresent(new RepoKey(BRANCH, conf.getGithubRepository()));
+        if (clone == null) return Collections.emptyList();
+        return clone.getPendingCommits().stream()
+                .filter(c -> c.getAuthor().equals(conf.getUsername()))
+                .collect(Collectors.toList());
+    }
+
+    private ScmCredentials getCredentials(SessionContext conf) {
+        return new ScmCredentials(conf.getUsername(), conf.getEmail(), conf.getGithubToken());
+    }
+
+    /**
+     * Wraps the repository so that saves are journaled locally and pushed in the background. Enabled with property
+     * repository.writeBehind=true. Journals are kept in repository.writeBehind.dir, separately for each user.
+     */
+    private ArchetypeRepository writeBehindIfEnabled(UserRepoKey key, ArchetypeRepository repository) {
+        if (!Boolean.parseBoolean(Configuration.get("repository.writeBehind", "false"))) {
+            return repository;
+        }
+        GithubRepositoryId repoId = GithubRepositoryId.parse(key.repo.repositoryName);
+        Path directory = Paths.get(Configuration.get("repository.writeBehind.dir",
+                Configuration.getAppHome().resolve("data").resolve("journal").toString()))
+                .resolve(repoId.getOwner())
+                .resolve(repoId.getName() + "-" + key.repo.branch)
+                .resolve(key.username);
+        WriteBehindArchetypeRepository r = new WriteBehindArchetypeRepository(repository, directory);
+        r.init();
+        return r;
+    }
+
+    /**
+     * Whether repositories are served from local git clones instead of through the github contents api. Set with
+     * property repository.backend=git.
+     */
+    private boolean isGitBackend() {
+        return "git".equals(Configuration.get("repository.backend", "github"));
+    }
+
+    private GitRepositoryClone getGitClone(SessionContext conf, RepoKey key, ExtRepository repository) {
+        return computeIfAbsent(gitCloneMap, key, () -> {
+            Path directory = Paths.get(Configuration.get("repository.git.dir",
+                    Configuration.getAppHome().resolve("data").resolve("git").toString()))
+                    .resolve(repository.getOwner().getLogin())
+                    .resolve(repository.getName() + "-" + key.branch);
+            GitRepositoryClone c = new GitRepositoryClone(directory, repository.getCloneUrl(), key.branch,
+                    new UsernamePasswordCredentialsProvider(conf.getUsername(), conf.getGithubToken()));
+            c.open();
+            return c;
         });
     }
 
+    private void updateGitClone(RepoKey key) {
+        GitRepositoryClone clone = gitCloneMap.getIfPresent(key);
+        if (clone != null) {
+            clone.updateIfStale(GIT_UPDATE_INTERVAL);
+        }
+    }
+
+    private ExtRepository getGithubRepository(SessionContext conf, String repositoryName) {
+        GitHubClient github = new GitHubClient();
+        github.setCredentials(conf.getUsername(), conf.getGithubToken());
+        GithubRepositoryId repoId = GithubRepositoryId.parse(repositoryName);
+        try {
+            return new ExtRepositoryService(github).getRepository(new RepositoryId(repoId.getOwner(), repoId.getName()));
+        } catch (RequestException e) {
+            if (e.getStatus() == 404) {
+                throw new RepositoryNotFoundException("Repository does not exist or is hidden: " + repositoryName);
+            }
+            throw new RepositoryException(e);
+        } catch (IOException e) {
+            throw new RepositoryException(e);
+        }
+    }
+
+    private String getParentName(Repository repository) {
+        if (repository.getParent() == null) return null;
+        return repository.getParent().getOwner().getLogin() + "/" + repository.getParent().getName();
+    }
+
     public String forkRepository(SessionContext conf, String parentRepository) {
         GitHubClient github = new GitHubClient();
         github.setCredentials(conf.getUsername(), conf.getGithubToken());
@@ -107,4 +362,28 @@ public class RepositoryProvider {
             return Objects.hash(branch, repositoryName);
         }
     }
+
+    private static final class UserRepoKey {
+        final String username;
+        final RepoKey repo;
+
+        UserRepoKey(String username, RepoKey repo) {
+            this.username = username;
+            this.repo = repo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            UserRepoKey key = (UserRepoKey) o;
+            return Objects.equals(username, key.username) &&
+                    Objects.equals(repo, key.repo);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(username, repo);
+        }
+    }
 }
@@ -26,6 +26,7 @@ package org.openehr.designer.web;
 public class SessionContext {
 
     private String username;
+    private String email;
     private String githubToken;
     private String githubRepository;
 
@@ -37,6 +38,14 @@ public class SessionContext {
         this.username = username;
     }
 
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
     public String getGithubToken() {
         return githubToken;
     }
@@ -0,0 +1,150 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.web;
+
+import com.google.common.hash.Hashing;
+import org.openehr.designer.repository.FlatArchetypeRepository;
+import org.springframework.web.util.WebUtils;
+
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpSession;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Adl source previews of the archetypes and templates edited in a session. A preview is reused as long as the
+ * submitted content is the same and the flat forms of the repository archetypes it was differentiated against have
+ * not changed. Only the last preview of each archetype or template is kept.
+ *
+ * @author markopi
+ */
+public class SourcePreviewCache implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final String SESSION_ATTRIBUTE = SourcePreviewCache.class.getName();
+    private static final int MAX_PREVIEWS = 16;
+
+    // by preview key, least recently used first
+    private final Map<String, Preview> previews = new PreviewMap();
+
+    public static SourcePreviewCache get(HttpSession session) {
+        synchronized (WebUtils.getSessionMutex(session)) {
+            SourcePreviewCache result = (SourcePreviewCache) session.getAttribute(SESSION_ATTRIBUTE);
+            if (result == null) {
+                result = new SourcePreviewCache();
+                session.setAttribute(SESSION_ATTRIBUTE, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * @param kind       kind of preview, such as archetype or template
+     * @param repository repository the content is differentiated against
+     * @param content    submitted content, as received
+     * @return key of the preview of the given content
+     */
+    public static String key(String kind, String repository, byte[] content) {
+        return kind + ":" + repository + ":" + Hashing.sha1().hashBytes(content);
+    }
+
+    /**
+     * Reads the versions of the flat archetypes a preview depends on. Versions must be read before the preview is
+     * rendered, so a change made while rendering invalidates the preview.
+     *
+     * @param archetypeIds ids of repository archetypes the preview is differentiated against
+     * @return flat archetype version by archetype id, or null if the preview cannot be cached
+     */
+    @Nullable
+    public static Map<String, String> getDependencyVersions(FlatArchetypeRepository flatArchetypes,
+                                                           Collection<String> archetypeIds) {
+        Map<String, String> result = new HashMap<>();
+        for (String archetypeId : archetypeIds) {
+            String version = flatArchetypes.getFlatArchetypeVersion(archetypeId);
+            if (version == null) return null;
+            result.put(archetypeId, version);
+        }
+        return result;
+    }
+
+    /**
+     * @return cached preview, or null if there is none or it is no longer current
+     */
+    @Nullable
+    public String getIfCurrent(String key, FlatArchetypeRepository flatArchetypes) {
+        Preview preview;
+        synchronized (previews) {
+            preview = previews.get(key);
+        }
+        if (preview == null) return null;
+        for (Map.Entry<String, String> dependency : preview.dependencyVersions.entrySet()) {
+            if (!Objects.equals(dependency.getValue(), flatArchetypes.getFlatArchetypeVersion(dependency.getKey()))) {
+                return null;
+            }
+        }
+        return preview.adl;
+    }
+
+    /**
+     * Stores a preview, replacing any earlier preview of the same archetype or template.
+     *
+     * @param ownerId            id of the previewed archetype or template
+     * @param dependencyVersions as returned by {@link #getDependencyVersions}; if null, the preview is not stored
+     */
+    public void put(String key, String ownerId, @Nullable Map<String, String> dependencyVersions, String adl) {
+        if (dependencyVersions == null) return;
+        String owner = key.substring(0, key.lastIndexOf(':') + 1) + ownerId;
+        synchronized (previews) {
+            previews.values().removeIf(p -> p.owner.equals(owner));
+            previews.put(key, new Preview(owner, dependencyVersions, adl));
+        }
+    }
+
+    private static class PreviewMap extends LinkedHashMap<String, Preview> {
+        private static final long serialVersionUID = 1L;
+
+        PreviewMap() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Preview> eldest) {
+            return size() > MAX_PREVIEWS;
+        }
+    }
+
+    private static class Preview implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        final String owner;
+        final Map<String, String> dependencyVersions;
+        final String adl;
+
+        Preview(String owner, Map<String, String> dependencyVersions, String adl) {
+            this.owner = owner;
+            this.dependencyVersions = dependencyVersions;
+            this.adl = adl;
+        }
+    }
+}
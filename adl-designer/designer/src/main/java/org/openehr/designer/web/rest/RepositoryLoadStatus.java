@@ -0,0 +1,56 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.web.rest;
+
+import org.openehr.designer.repository.RepositoryLoadProgress;
+
+/**
+ * @author markopi
+ */
+public class RepositoryLoadStatus {
+    private String repository;
+    private RepositoryLoadProgress archetypes;
+    private RepositoryLoadProgress templates;
+
+    public String getRepository() {
+        return repository;
+    }
+
+    public void setRepository(String repository) {
+        this.repository = repository;
+    }
+
+    public RepositoryLoadProgress getArchetypes() {
+        return archetypes;
+    }
+
+    public void setArchetypes(RepositoryLoadProgress archetypes) {
+        this.archetypes = archetypes;
+    }
+
+    public RepositoryLoadProgress getTemplates() {
+        return templates;
+    }
+
+    public void setTemplates(RepositoryLoadProgress templates) {
+        this.templates = templates;
+    }
+}
@@ -20,22 +20,32 @@
 
 package org.openehr.designer.web.rest;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.openehr.adl.FlatArchetypeProvider;
 import org.openehr.adl.serializer.ArchetypeSerializer;
 import org.openehr.adl.util.ArchetypeWrapper;
+import org.openehr.designer.Configuration;
 import org.openehr.designer.FlatArchetypeProviderOverlay;
+import org.openehr.designer.ObjectMapperFactoryBean;
 import org.openehr.designer.ReferenceModelDataBuilder;
 import org.openehr.designer.diff.ArchetypeDifferentiator;
 import org.openehr.designer.diff.TemplateDifferentiator;
 import org.openehr.designer.io.TemplateSerializer;
 import org.openehr.designer.io.opt.OptBuilder;
 import org.openehr.designer.repository.*;
+import org.openehr.designer.repository.git.GitRepositoryClone;
 import org.openehr.designer.rm.ReferenceModels;
 import org.openehr.designer.web.RepositoryProvider;
 import org.openehr.designer.web.ResourceDownloadManager;
 import org.openehr.designer.web.SessionContext;
 import org.openehr.designer.web.SessionContextHolder;
+import org.openehr.designer.web.OptArtifactCache;
+import org.openehr.designer.web.SourcePreviewCache;
 import org.openehr.jaxb.am.Archetype;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -45,10 +55,35 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 /**
  * @author Marko Pipan
@@ -57,6 +92,8 @@ import java.util.stream.Collectors;
 @RequestMapping(value = "/repo")
 public class RepositoryResource extends AbstractResource {
     private static final Logger LOG = LoggerFactory.getLogger(RepositoryResource.class);
+    private static final int DEFAULT_FLATTEN_THREADS = 4;
+    private static final int DEFAULT_OPT_CACHE_MEMORY_MB = 32;
 
 
     @Resource
@@ -66,10 +103,52 @@ public class RepositoryResource extends AbstractResource {
 
     @Resource
     private ResourceDownloadManager resourceDownloadManager;
+    @Resource
+    private OptBuilder optBuilder;
+
 
+    private ExecutorService flattenExecutor;
+    private int flattenThreads;
+    // per archetype template work: differentiation and serialization
+    private ForkJoinPool templatePool;
+    private ExecutorService optExportExecutor;
+    private int optExportThreads;
+    private OptArtifactCache optCache;
+    private ObjectMapper objectMapper;
 
     @PostConstruct
-    public void init() {
+    public void init() throws Exception {
+        objectMapper = new ObjectMapperFactoryBean().getObject();
+        flattenThreads = Configuration.getInt("repository.flatten.threads", DEFAULT_FLATTEN_THREADS);
+        flattenExecutor = Executors.newFixedThreadPool(flattenThreads, new ThreadFactoryBuilder()
+                .setNameFormat("archetype-flattener-%d")
+                .setDaemon(true)
+                .build());
+        // repository.differentiate.threads is the earlier name of the setting, from when the pool only differentiated
+        templatePool = new ForkJoinPool(
+                Configuration.getInt("repository.template.threads", Configuration.getInt(
+                        "repository.differentiate.threads", Runtime.getRuntime().availableProcessors())),
+                pool -> {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("template-worker-" + thread.getPoolIndex());
+                    return thread;
+                }, null, false);
+        optExportThreads = Configuration.getInt("opt.export.threads", Runtime.getRuntime().availableProcessors());
+        optExportExecutor = Executors.newFixedThreadPool(optExportThreads, new ThreadFactoryBuilder()
+                .setNameFormat("opt-exporter-%d")
+                .setDaemon(true)
+                .build());
+        optCache = new OptArtifactCache(
+                Paths.get(Configuration.get("opt.cache.dir",
+                        Configuration.getAppHome().resolve("data/opt-cache").toString())),
+                Configuration.getInt("opt.cache.memoryMb", DEFAULT_OPT_CACHE_MEMORY_MB) * 1024L * 1024L);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        flattenExecutor.shutdownNow();
+        templatePool.shutdownNow();
+        optExportExecutor.shutdownNow();
     }
 
     @RequestMapping(value = "/archetype/{archetypeId}/source")
@@ -84,6 +163,49 @@ public class RepositoryResource extends AbstractResource {
         return getFlatArchetypeRepository(SessionContextHolder.get()).getFlatArchetype(archetypeId);
     }
 
+    /**
+     * Returns flat forms of the requested archetypes as a json array, in the order of the requested ids. Archetypes
+     * are flattened in parallel and written as soon as they are available. Shared parents are flattened only once.
+     * An archetype that cannot be flattened is returned as null.
+     */
+    @RequestMapping(value = "/archetype/flat", method = RequestMethod.POST)
+    public void getFlatArchetypes(@RequestBody List<String> archetypeIds, HttpServletResponse response)
+            throws IOException {
+        FlatArchetypeRepository flatArchetypeRepository = getFlatArchetypeRepository(SessionContextHolder.get());
+
+        // only a bounded number of flat archetypes is in flight, so large batches are not held in memory
+        int maxPending = flattenThreads * 2;
+        Deque<Future<Archetype>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        response.setContentType("application/json;charset=UTF-8");
+        try (JsonGenerator generator = objectMapper.getFactory()
+                .createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            generator.writeStartArray();
+            while (submitted < archetypeIds.size() || !pending.isEmpty()) {
+                while (submitted < archetypeIds.size() && pending.size() < maxPending) {
+                    String archetypeId = archetypeIds.get(submitted++);
+                    pending.add(flattenExecutor.submit(() -> flatArchetypeRepository.getFlatArchetype(archetypeId)));
+                }
+                objectMapper.writeValue(generator, getFlatArchetypeOrNull(pending.remove()));
+            }
+            generator.writeEndArray();
+        } finally {
+            pending.forEach(f -> f.cancel(true));
+        }
+    }
+
+    private Archetype getFlatArchetypeOrNull(Future<Archetype> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while flattening archetypes", e);
+        } catch (ExecutionException e) {
+            LOG.warn("Could not flatten archetype", e.getCause());
+            return null;
+        }
+    }
+
     @RequestMapping(value = "/archetype/{archetypeId}/flat", method = RequestMethod.PUT)
     public void saveFlatArchetype(@PathVariable("archetypeId") String archetypeId, @RequestBody Archetype archetype) {
         if (!archetypeId.equals(archetype.getArchetypeId().getValue())) {
@@ -95,6 +217,60 @@ public class RepositoryResource extends AbstractResource {
                 referenceModels.getDefaultReferenceModel(), getFlatArchetypeRepository(ctx), archetype);
         differentialArchetype.setRmRelease(ReferenceModelDataBuilder.RM_VERSION);
         repositoryProvider.getArchetypeRepository(ctx).saveDifferentialArchetype(differentialArchetype);
+        optCache.invalidateArchetype(archetypeId);
+    }
+
+    /**
+     * Returns the status of archetype saves that have been accepted but not yet pushed to the repository. Always empty
+     * unless write-behind saving is enabled.
+     */
+    @RequestMapping(value = "/archetype/save-status", method = RequestMethod.GET)
+    public List<WriteBehindArchetypeRepository.SaveStatus> getArchetypeSaveStatus() {
+        ArchetypeRepository archetypeRepository = repositoryProvider.getArchetypeRepository(SessionContextHolder.get());
+        if (archetypeRepository instanceof WriteBehindArchetypeRepository) {
+            return ((WriteBehindArchetypeRepository) archetypeRepository).getSaveStatuses();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Returns the current user's saves that have not been pushed to the remote repository yet. Always empty unless
+     * the git backend is used.
+     */
+    @RequestMapping(value = "/pending-commits", method = RequestMethod.GET)
+    public List<GitRepositoryClone.PendingCommit> getPendingCommits() {
+        return repositoryProvider.getPendingCommits(SessionContextHolder.get());
+    }
+
+    /**
+     * Returns the current user's saves that were dropped because they conflicted with changes in the remote
+     * repository. Always empty unless the git backend is used.
+     */
+    @RequestMapping(value = "/dropped-commits", method = RequestMethod.GET)
+    public List<GitRepositoryClone.DroppedCommit> getDroppedCommits() {
+        return repositoryProvider.getDroppedCommits(SessionContextHolder.get());
+    }
+
+    /**
+     * Returns how saved archetypes and templates are checked, and how often the checks failed since startup.
+     */
+    @RequestMapping(value = "/save-validation", method = RequestMethod.GET)
+    public SaveValidationPolicy.Statistics getSaveValidationStatistics() {
+        return SaveValidationPolicy.getDefault().getStatistics();
+    }
+
+    /**
+     * Returns the progress of loading the current repository. Repositories are loaded in the background after they
+     * are chosen; until loading completes, archetype and template lists contain only what has been loaded so far.
+     */
+    @RequestMapping(value = "/status", method = RequestMethod.GET)
+    public RepositoryLoadStatus getLoadStatus() {
+        SessionContext ctx = SessionContextHolder.get();
+        RepositoryLoadStatus status = new RepositoryLoadStatus();
+        status.setRepository(ctx.getGithubRepository());
+        status.setArchetypes(repositoryProvider.getArchetypeLoadProgress(ctx));
+        status.setTemplates(repositoryProvider.getTemplateLoadProgress(ctx));
+        return status;
     }
 
     @RequestMapping(value = "/list")
@@ -110,7 +286,7 @@ public class RepositoryResource extends AbstractResource {
         SessionContext ctx = SessionContextHolder.get();
         FlatArchetypeRepository flatArchetypeRepository = getFlatArchetypeRepository(ctx);
 
-        TemplateDifferentiator differentiator = new TemplateDifferentiator(flatArchetypeRepository);
+        TemplateDifferentiator differentiator = new TemplateDifferentiator(flatArchetypeRepository, templatePool);
         List<Archetype> sourceArchetypes = differentiator.differentiate(referenceModels.getDefaultReferenceModel(), archetypes);
         sourceArchetypes.forEach(a -> {
             if (!a.isIsOverlay() && a.getRmRelease() == null) {
@@ -119,12 +295,12 @@ public class RepositoryResource extends AbstractResource {
         });
         TemplateRepository templateRepository = repositoryProvider.getTemplateRepository(ctx);
         templateRepository.saveTemplate(sourceArchetypes);
+        optCache.invalidateTemplate(String.valueOf(ctx.getGithubRepository()),
+                sourceArchetypes.get(0).getArchetypeId().getValue());
     }
 
     private FlatArchetypeRepository getFlatArchetypeRepository(SessionContext ctx) {
-        return new FlatArchetypeRepository(
-                repositoryProvider.getArchetypeRepository(ctx),
-                referenceModels.getDefaultReferenceModel());
+        return repositoryProvider.getFlatArchetypeRepository(ctx);
     }
 
     @RequestMapping(value = "/template", method = RequestMethod.GET)
@@ -153,13 +329,12 @@ public class RepositoryResource extends AbstractResource {
     }
 
     @RequestMapping(value = "/export/opt/14/{templateId}", method = RequestMethod.GET)
-    public ResponseEntity<byte[]> exportSavedOpt14(@PathVariable String templateId) {
+    public ResponseEntity<byte[]> exportSavedOpt14(@PathVariable String templateId) throws IOException {
+        checkOptExportAvailable();
         SessionContext conf = SessionContextHolder.get();
 
-        TemplateRepository templateRepository = repositoryProvider.getTemplateRepository(conf);
-        List<Archetype> templateArchetypes = templateRepository.loadTemplate(templateId);
-
-        OptBuilder.Opt opt = createOptBuilder(conf).build(templateArchetypes);
+        OptBuilder.Opt opt = buildSavedOpt(String.valueOf(conf.getGithubRepository()),
+                repositoryProvider.getTemplateRepository(conf), getFlatArchetypeRepository(conf), templateId);
 
         HttpHeaders headers = new HttpHeaders();
         headers.add("Content-Type", "text/xml; charset=utf-8");
@@ -168,11 +343,102 @@ public class RepositoryResource extends AbstractResource {
         return new ResponseEntity<>(opt.getContent(), headers, HttpStatus.OK);
     }
 
-    private OptBuilder createOptBuilder(SessionContext conf) {
-        OptBuilder builder = new OptBuilder();
-        builder.setArchetypeRepository(repositoryProvider.getArchetypeRepository(conf));
-        builder.init();
-        return builder;
+    /**
+     * Returns opts of saved templates as a zip file, with one entry per template. Exports the requested templates, or
+     * all templates if none are requested. Opts are built in parallel and each is written as soon as it is built.
+     * Templates that cannot be exported are listed with the reason in an errors.txt entry at the end.
+     */
+    @RequestMapping(value = "/export/opt/14", method = RequestMethod.GET)
+    public void exportSavedOpts14(@RequestParam(value = "templateId", required = false) List<String> templateIds,
+                                  HttpServletResponse response) throws IOException {
+        checkOptExportAvailable();
+        SessionContext ctx = SessionContextHolder.get();
+        String repositoryName = String.valueOf(ctx.getGithubRepository());
+        TemplateRepository templateRepository = repositoryProvider.getTemplateRepository(ctx);
+        FlatArchetypeRepository flatArchetypeRepository = getFlatArchetypeRepository(ctx);
+        if (templateIds == null || templateIds.isEmpty()) {
+            templateIds = templateRepository.listTemplates().stream()
+                    .map(TemplateInfo::getTemplateId)
+                    .collect(Collectors.toList());
+        }
+
+        response.setContentType("application/zip");
+        response.setHeader("Content-Disposition", "attachment; filename=\"opt14.zip\"");
+
+        // only a bounded number of opts is in flight, so large repositories are not held in memory
+        int maxPending = optExportThreads * 2;
+        CompletionService<OptBuilder.Opt> completionService = new ExecutorCompletionService<>(optExportExecutor);
+        Map<Future<OptBuilder.Opt>, String> pending = new HashMap<>();
+        Set<String> entryNames = new HashSet<>();
+        Map<String, String> errors = new TreeMap<>();
+        int submitted = 0;
+        try (ZipOutputStream zip = new ZipOutputStream(response.getOutputStream())) {
+            while (submitted < templateIds.size() || !pending.isEmpty()) {
+                while (submitted < templateIds.size() && pending.size() < maxPending) {
+                    String templateId = templateIds.get(submitted++);
+                    pending.put(completionService.submit(() -> buildSavedOpt(repositoryName, templateRepository,
+                            flatArchetypeRepository, templateId)), templateId);
+                }
+                Future<OptBuilder.Opt> future = completionService.take();
+                String templateId = pending.remove(future);
+                OptBuilder.Opt opt;
+                try {
+                    opt = future.get();
+                } catch (ExecutionException e) {
+                    LOG.warn("Could not export template {} to opt", templateId, e.getCause());
+                    errors.put(templateId, String.valueOf(e.getCause().getMessage()));
+                    continue;
+                }
+                // opt template ids are not necessarily unique, repository template ids are
+                String entryName = entryNames.add(opt.getTemplateId()) ? opt.getTemplateId() : templateId;
+                entryNames.add(entryName);
+                zip.putNextEntry(new ZipEntry(entryName + ".opt"));
+                zip.write(opt.getContent());
+                zip.closeEntry();
+                zip.flush();
+            }
+            if (!errors.isEmpty()) {
+                zip.putNextEntry(new ZipEntry("errors.txt"));
+                Writer writer = new OutputStreamWriter(zip, Charsets.UTF_8);
+                for (Map.Entry<String, String> error : errors.entrySet()) {
+                    writer.write(error.getKey() + ": " + error.getValue() + "\n");
+                }
+                writer.flush();
+                zip.closeEntry();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while exporting opts", e);
+        } finally {
+            pending.keySet().forEach(f -> f.cancel(true));
+        }
+    }
+
+    /**
+     * Responds with 501 Not Implemented when this installation has no opt builder.
+     */
+    private void checkOptExportAvailable() {
+        if (!optBuilder.enabled()) {
+            throw RestException.of(HttpStatus.NOT_IMPLEMENTED).message("Exporting to opt is not available").build();
+        }
+    }
+
+    private OptBuilder.Opt buildSavedOpt(String repositoryName, TemplateRepository templateRepository,
+                                         FlatArchetypeRepository flatArchetypeRepository, String templateId)
+            throws IOException {
+        List<Archetype> templateArchetypes = templateRepository.loadTemplate(templateId);
+
+        OptArtifactCache.Key key = optBuilder.enabled()
+                ? optCache.key(repositoryName, templateArchetypes, flatArchetypeRepository, optBuilder, templatePool)
+                : null;
+        OptBuilder.Opt opt = key != null ? optCache.get(key) : null;
+        if (opt == null) {
+            opt = optBuilder.build(flatArchetypeRepository, templateArchetypes);
+            if (key != null) {
+                optCache.put(key, opt);
+            }
+        }
+        return opt;
     }
 
     @RequestMapping(value = "/export/opt14/display", method = RequestMethod.POST)
@@ -199,15 +465,16 @@ public class RepositoryResource extends AbstractResource {
     private OptBuilder.Opt createOpt(@RequestBody List<Archetype> flatArchetypeList) {
         SessionContext conf = SessionContextHolder.get();
 
-        TemplateDifferentiator differentiator = new TemplateDifferentiator(getFlatArchetypeRepository(conf));
+        FlatArchetypeRepository flatArchetypeRepository = getFlatArchetypeRepository(conf);
+        TemplateDifferentiator differentiator = new TemplateDifferentiator(flatArchetypeRepository, templatePool);
         List<Archetype> templateArchetypes = differentiator.differentiate(
                 referenceModels.getDefaultReferenceModel(), flatArchetypeList);
 
-        return createOptBuilder(conf).build(templateArchetypes);
+        return optBuilder.build(flatArchetypeRepository, templateArchetypes);
     }
 
     @RequestMapping(value = "/export/adlt/{templateId}", method = RequestMethod.GET)
-    public ResponseEntity<byte[]> exportAdlt(@PathVariable String templateId) {
+    public void exportAdlt(@PathVariable String templateId, HttpServletResponse response) throws IOException {
         SessionContext ctx = SessionContextHolder.get();
         TemplateRepository templateRepository = repositoryProvider.getTemplateRepository(ctx);
         List<Archetype> archetypes = templateRepository.loadTemplate(templateId);
@@ -215,23 +482,40 @@ public class RepositoryResource extends AbstractResource {
         ArchetypeWrapper archetypeWrapper = new ArchetypeWrapper(archetype);
         String archetypeName = archetypeWrapper.getTermText(archetype.getDefinition().getNodeId());
 
-        byte[] adltContent = TemplateSerializer.serialize(archetypes).getBytes(Charsets.UTF_8);
-
-        HttpHeaders headers = new HttpHeaders();
-        headers.add("Content-Type", "text/plain; charset=utf-8");
-        headers.add("Content-Disposition", "attachment; filename=\"" + archetypeName + ".adlt\"");
-        headers.add("Content-Length", Integer.toString(adltContent.length));
-        return new ResponseEntity<>(adltContent, headers, HttpStatus.OK);
+        response.setContentType("text/plain; charset=utf-8");
+        response.setHeader("Content-Disposition", "attachment; filename=\"" + archetypeName + ".adlt\"");
+        TemplateSerializer.serialize(archetypes, response.getOutputStream(), templatePool);
     }
 
+    /**
+     * Returns the differential adl source of a flat archetype. The preview is reused while neither the submitted
+     * archetype nor the flat form of its parent changes.
+     */
     @RequestMapping(value = "/display/adl/source", method = RequestMethod.POST, produces = "text/plain; charset=utf-8")
     @ResponseBody
-    public String displayArchetypeAdlSource(@RequestBody Archetype archetype, HttpSession session) {
+    public String displayArchetypeAdlSource(@RequestBody byte[] content, HttpSession session) throws IOException {
         SessionContext ctx = SessionContextHolder.get();
+        FlatArchetypeRepository flatArchetypeRepository = getFlatArchetypeRepository(ctx);
+        SourcePreviewCache previews = SourcePreviewCache.get(session);
+        String key = SourcePreviewCache.key("archetype", ctx.getGithubRepository(), content);
+        String cached = previews.getIfCurrent(key, flatArchetypeRepository);
+        if (cached != null) {
+            return cached;
+        }
+
+        Archetype archetype = objectMapper.readValue(content, Archetype.class);
+        List<String> parents = new ArrayList<>();
+        if (archetype.getParentArchetypeId() != null && archetype.getParentArchetypeId().getValue() != null) {
+            parents.add(archetype.getParentArchetypeId().getValue());
+        }
+        Map<String, String> dependencyVersions =
+                SourcePreviewCache.getDependencyVersions(flatArchetypeRepository, parents);
 
         Archetype differentialArchetype = ArchetypeDifferentiator.differentiate(
-                referenceModels.getDefaultReferenceModel(), getFlatArchetypeRepository(ctx), archetype);
-        return ArchetypeSerializer.serialize(differentialArchetype);
+                referenceModels.getDefaultReferenceModel(), flatArchetypeRepository, archetype);
+        String adl = ArchetypeSerializer.serialize(differentialArchetype);
+        previews.put(key, archetype.getArchetypeId().getValue(), dependencyVersions, adl);
+        return adl;
     }
 
     @RequestMapping(value = "/display/adl/flat", method = RequestMethod.POST, produces = "text/plain; charset=utf-8")
@@ -240,14 +524,44 @@ public class RepositoryResource extends AbstractResource {
         return ArchetypeSerializer.serialize(archetype);
     }
 
+    /**
+     * Returns the adlt source of a template given as flat archetypes. The preview is reused while neither the
+     * submitted template nor the flat form of any repository archetype it specializes changes.
+     */
     @RequestMapping(value = "/display/adl/template", method = RequestMethod.POST, produces = "text/plain; charset=utf-8")
     @ResponseBody
-    public String displayTemplateAdl(@RequestBody List<Archetype> flatArchetypeList) {
+    public String displayTemplateAdl(@RequestBody byte[] content, HttpSession session) throws IOException {
         SessionContext ctx = SessionContextHolder.get();
-        TemplateDifferentiator differentiator = new TemplateDifferentiator(getFlatArchetypeRepository(ctx));
+        FlatArchetypeRepository flatArchetypeRepository = getFlatArchetypeRepository(ctx);
+        SourcePreviewCache previews = SourcePreviewCache.get(session);
+        String key = SourcePreviewCache.key("template", ctx.getGithubRepository(), content);
+        String cached = previews.getIfCurrent(key, flatArchetypeRepository);
+        if (cached != null) {
+            return cached;
+        }
+
+        List<Archetype> flatArchetypeList = objectMapper.readValue(content, new TypeReference<List<Archetype>>() {
+        });
+        // parents that are not part of the template itself come from the repository
+        Set<String> templateArchetypeIds = flatArchetypeList.stream()
+                .map(a -> a.getArchetypeId().getValue())
+                .collect(Collectors.toSet());
+        Set<String> parents = flatArchetypeList.stream()
+                .filter(a -> a.getParentArchetypeId() != null && a.getParentArchetypeId().getValue() != null)
+                .map(a -> a.getParentArchetypeId().getValue())
+                .filter(id -> !templateArchetypeIds.contains(id))
+                .collect(Collectors.toSet());
+        Map<String, String> dependencyVersions =
+                SourcePreviewCache.getDependencyVersions(flatArchetypeRepository, parents);
+
+        TemplateDifferentiator differentiator = new TemplateDifferentiator(flatArchetypeRepository, templatePool);
         List<Archetype> sourceArchetypes = differentiator.differentiate(
              /**/   referenceModels.getDefaultReferenceModel(), flatArchetypeList);
-        return TemplateSerializer.serialize(sourceArchetypes);
+        String adlt = TemplateSerializer.serialize(sourceArchetypes);
+        if (!flatArchetypeList.isEmpty()) {
+            previews.put(key, flatArchetypeList.get(0).getArchetypeId().getValue(), dependencyVersions, adlt);
+        }
+        return adlt;
     }
 
     @ResponseStatus(value = HttpStatus.BAD_REQUEST, reason = "No such archetype")
@@ -21,7 +21,7 @@
 package org.openehr.designer.web.rest;
 
 import org.openehr.designer.repository.RepositoryNotFoundException;
-import org.openehr.designer.repository.github.GithubArchetypeRepository;
+import org.openehr.designer.repository.ScmRepository;
 import org.openehr.designer.repository.github.GithubRepositoryId;
 import org.openehr.designer.user.UserConfigurationService;
 import org.openehr.designer.user.UserRepositoriesConfiguration;
@@ -89,10 +89,9 @@ public class UserResource extends AbstractResource {
                 return existing;
             }
             // create repository and maybe metadata
-            GithubArchetypeRepository archetypeRepository = null;
+            ScmRepository archetypeRepository = null;
             try {
-                archetypeRepository = (GithubArchetypeRepository)
-                        repositoryProvider.getArchetypeRepository(ctx, repoName);
+                archetypeRepository = (ScmRepository) repositoryProvider.getArchetypeRepository(ctx, repoName);
                 repositoryProvider.getTemplateRepository(ctx, repoName);
             } catch (RepositoryNotFoundException e) {
                 throw RestException.badRequest().causedBy(e).build();
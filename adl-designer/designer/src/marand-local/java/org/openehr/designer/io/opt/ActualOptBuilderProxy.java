@@ -22,9 +22,6 @@ package org.openehr.designer.io.opt;
 
 import com.google.common.base.Charsets;
 import org.openehr.adl.FlatArchetypeProvider;
-import org.openehr.adl.rm.OpenEhrRmModel;
-import org.openehr.designer.repository.ArchetypeRepository;
-import org.openehr.designer.repository.FlatArchetypeRepository;
 import org.openehr.jaxb.am.Archetype;
 import org.openehr.jaxb.am14.Template;
 import org.openehr.optexporter14.Opt14TemplateBuilder;
@@ -37,13 +34,11 @@ import java.util.List;
  * @author Marko Pipan
  */
 class ActualOptBuilderProxy extends OptBuilderProxy {
-    private final Template14Serializer serializer;
-    private final Opt14TemplateBuilder builder;
+    // serializers hold marshalling state that is expensive to create, but are not known to be thread safe
+    private final ThreadLocal<Template14Serializer> serializer = ThreadLocal.withInitial(Template14Serializer::new);
+    private final String version = getVersion(Opt14TemplateBuilder.class) + "," + getVersion(Template14Serializer.class);
 
-    public ActualOptBuilderProxy(ArchetypeRepository repository) {
-        FlatArchetypeProvider archetypeProvider = new FlatArchetypeRepository(repository, OpenEhrRmModel.getInstance());
-        this.builder = new Opt14TemplateBuilder(archetypeProvider);
-        this.serializer = new Template14Serializer();
+    public ActualOptBuilderProxy() {
     }
 
     @Override
@@ -52,10 +47,15 @@ class ActualOptBuilderProxy extends OptBuilderProxy {
     }
 
     @Override
-    OptBuilder.Opt build(List<Archetype> archetypes) {
-        Template template14 = builder.build(archetypes);
+    String getVersion() {
+        return version;
+    }
+
+    @Override
+    OptBuilder.Opt build(FlatArchetypeProvider archetypeProvider, List<Archetype> archetypes) {
+        Template template14 = new Opt14TemplateBuilder(archetypeProvider).build(archetypes);
         return new OptBuilder.Opt(
                 template14.getTemplateId().getValue(),
-                serializer.serialize(template14).getBytes(Charsets.UTF_8));
+                serializer.get().serialize(template14).getBytes(Charsets.UTF_8));
     }
 }
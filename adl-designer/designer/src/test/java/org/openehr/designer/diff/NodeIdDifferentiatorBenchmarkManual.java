@@ -0,0 +1,122 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.diff;
+
+import com.google.common.base.Charsets;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.ToIntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares node id specialization depth scanning with the former regular expression based parsing, on node ids and
+ * term binding paths found in the test repositories.
+ */
+public class NodeIdDifferentiatorBenchmarkManual {
+    private static final Pattern CORPUS_PATTERN = Pattern.compile("\\b(?:id|at|ac)[0-9]+(?:\\.[0-9]+)*\\b|\\[\"(/[^\"]+)\"\\]");
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 50;
+    private static final int OPERATIONS_PER_ROUND = 1_000_000;
+
+    private String[] corpus;
+
+    @BeforeClass
+    public void init() throws Exception {
+        URL resource = ClassLoader.getSystemResource("repository/openEHR-EHR-OBSERVATION.blood_pressure.v1.adls");
+        Path resourcesPath = Paths.get(resource.toURI()).getParent().getParent();
+
+        List<String> nodeIds = new ArrayList<>();
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(resourcesPath)) {
+            files = paths.filter(p -> p.toString().endsWith(".adls") || p.toString().endsWith(".adlt"))
+                    .collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            Matcher m = CORPUS_PATTERN.matcher(new String(Files.readAllBytes(file), Charsets.UTF_8));
+            while (m.find()) {
+                nodeIds.add(m.group(1) != null ? m.group(1) : m.group());
+            }
+        }
+        corpus = nodeIds.toArray(new String[nodeIds.size()]);
+        System.out.printf("Corpus of %d node ids from %d files%n", corpus.length, files.size());
+    }
+
+    @Test
+    public void benchmarkPattern() throws Exception {
+        run("pattern", NodeIdDifferentiatorBenchmarkManual::getSpecializationDepthWithException);
+    }
+
+    @Test
+    public void benchmarkScanner() throws Exception {
+        run("scanner", NodeIdDifferentiator::scanSpecializationDepth);
+    }
+
+    // how ArchetypeDifferentiator used the pattern based parsing, with invalid ids reported by exception
+    private static int getSpecializationDepthWithException(String nodeId) {
+        int result = NodeIdDifferentiatorTest.getSpecializationDepthWithPattern(nodeId);
+        if (result == NodeIdDifferentiator.INVALID_NODE_ID) {
+            try {
+                throw new IllegalArgumentException(nodeId);
+            } catch (IllegalArgumentException e) {
+                return NodeIdDifferentiator.INVALID_NODE_ID;
+            }
+        }
+        return result;
+    }
+
+    private void run(String name, ToIntFunction<String> depth) {
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += round(depth);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            sink += round(depth);
+        }
+        long time = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double operations = (double) MEASURED_ROUNDS * OPERATIONS_PER_ROUND;
+        System.out.printf("%s: %.1f ns/op, %.1f bytes/op (%d)%n", name, time / operations, allocated / operations, sink);
+    }
+
+    private long round(ToIntFunction<String> depth) {
+        long result = 0;
+        for (int i = 0; i < OPERATIONS_PER_ROUND; i++) {
+            result += depth.applyAsInt(corpus[i % corpus.length]);
+        }
+        return result;
+    }
+}
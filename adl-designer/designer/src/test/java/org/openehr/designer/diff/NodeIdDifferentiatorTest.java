@@ -0,0 +1,77 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.diff;
+
+import org.testng.annotations.Test;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.openehr.designer.diff.NodeIdDifferentiator.INVALID_NODE_ID;
+import static org.openehr.designer.diff.NodeIdDifferentiator.getSpecializationDepth;
+import static org.openehr.designer.diff.NodeIdDifferentiator.scanSpecializationDepth;
+
+public class NodeIdDifferentiatorTest {
+    // the regular expression based parsing the scanner replaced
+    private static final Pattern NODE_ID_PATTERN = Pattern.compile("([a-zA-Z]+)([\\d\\.]+)");
+
+    static int getSpecializationDepthWithPattern(String nodeId) {
+        if (nodeId.startsWith("openEHR-")) {
+            return 0;
+        }
+        Matcher m = NODE_ID_PATTERN.matcher(nodeId);
+        if (!m.matches()) return INVALID_NODE_ID;
+        return m.group(2).split("\\.").length;
+    }
+
+    @Test
+    public void testScanSpecializationDepth() throws Exception {
+        assertThat(scanSpecializationDepth("id1")).isEqualTo(1);
+        assertThat(scanSpecializationDepth("at0000")).isEqualTo(1);
+        assertThat(scanSpecializationDepth("id1.1")).isEqualTo(2);
+        assertThat(scanSpecializationDepth("ac0.0.3")).isEqualTo(3);
+        assertThat(scanSpecializationDepth("openEHR-EHR-OBSERVATION.blood_pressure.v1")).isEqualTo(0);
+    }
+
+    @Test
+    public void testScanInvalidNodeIds() throws Exception {
+        assertThat(scanSpecializationDepth("")).isEqualTo(INVALID_NODE_ID);
+        assertThat(scanSpecializationDepth("id")).isEqualTo(INVALID_NODE_ID);
+        assertThat(scanSpecializationDepth("12")).isEqualTo(INVALID_NODE_ID);
+        assertThat(scanSpecializationDepth("id1a")).isEqualTo(INVALID_NODE_ID);
+        assertThat(scanSpecializationDepth("/data[id2]/events[id7]")).isEqualTo(INVALID_NODE_ID);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testGetSpecializationDepthOfInvalidNodeId() throws Exception {
+        getSpecializationDepth("/data[id2]");
+    }
+
+    @Test
+    public void testScanMatchesPattern() throws Exception {
+        String[] nodeIds = {"id1", "id1.1", "id1.", "id1..2", "id.1", "id...", "at0.15", "ID3.0.1", "i1", "id1.1.",
+                "id", "id-1", "1.1", "id\u00e91", "openEHR-", "/data[id2]"};
+        for (String nodeId : nodeIds) {
+            assertThat(scanSpecializationDepth(nodeId)).as(nodeId).isEqualTo(getSpecializationDepthWithPattern(nodeId));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.diff;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.openehr.adl.parser.AdlDeserializer;
+import org.openehr.jaxb.am.*;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.BiPredicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Compares slot specialization checks by serialized form with {@link StructuralEquality}. The slots of the test
+ * archetypes are repeated as if they were the many slots of a section in a composition template, and each is compared
+ * with an equal copy (as for an unchanged slot) and with a copy that was closed (as for a specialized one).
+ */
+public class StructuralEqualityBenchmarkManual {
+    private static final int SLOTS_PER_SECTION = 500;
+    private static final int WARMUP_ROUNDS = 20;
+    private static final int MEASURED_ROUNDS = 50;
+
+    private ArchetypeSlot[] slots;
+    private ArchetypeSlot[] unchanged;
+    private ArchetypeSlot[] specialized;
+
+    @BeforeClass
+    public void init() throws Exception {
+        URL resource = ClassLoader.getSystemResource("repository/openEHR-EHR-COMPOSITION.encounter.v1.adls");
+        Path resourcesPath = Paths.get(resource.toURI()).getParent().getParent();
+
+        List<Path> files;
+        try (Stream<Path> paths = Files.walk(resourcesPath)) {
+            files = paths.filter(p -> p.toString().endsWith(".adls")).collect(Collectors.toList());
+        }
+        List<ArchetypeSlot> archetypeSlots = new ArrayList<>();
+        AdlDeserializer deserializer = new AdlDeserializer();
+        for (Path file : files) {
+            try (InputStream in = Files.newInputStream(file)) {
+                collectSlots(deserializer.parse(in).getDefinition(), archetypeSlots);
+            }
+        }
+
+        int count = archetypeSlots.size() * SLOTS_PER_SECTION;
+        slots = new ArchetypeSlot[count];
+        unchanged = new ArchetypeSlot[count];
+        specialized = new ArchetypeSlot[count];
+        for (int i = 0; i < count; i++) {
+            ArchetypeSlot slot = archetypeSlots.get(i % archetypeSlots.size());
+            slots[i] = (ArchetypeSlot) SerializationUtils.clone(slot);
+            unchanged[i] = (ArchetypeSlot) SerializationUtils.clone(slot);
+            specialized[i] = (ArchetypeSlot) SerializationUtils.clone(slot);
+            specialized[i].setIsClosed(true);
+        }
+        System.out.printf("%d slots from %d files, %d comparisons per round%n", archetypeSlots.size(), files.size(),
+                count * 2);
+    }
+
+    @Test
+    public void benchmarkSerialization() throws Exception {
+        run("serialization", (a, b) -> Arrays.equals(SerializationUtils.serialize(a), SerializationUtils.serialize(b)));
+    }
+
+    @Test
+    public void benchmarkStructuralEquality() throws Exception {
+        run("structural", StructuralEquality::isEqual);
+    }
+
+    private void collectSlots(CObject cobj, List<ArchetypeSlot> target) {
+        if (cobj instanceof ArchetypeSlot) {
+            target.add((ArchetypeSlot) cobj);
+        } else if (cobj instanceof CComplexObject) {
+            for (CAttribute attribute : ((CComplexObject) cobj).getAttributes()) {
+                for (CObject child : attribute.getChildren()) {
+                    collectSlots(child, target);
+                }
+            }
+        }
+    }
+
+    private void run(String name, BiPredicate<ArchetypeSlot, ArchetypeSlot> equal) {
+        long sink = 0;
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            sink += round(equal);
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_ROUNDS; i++) {
+            sink += round(equal);
+        }
+        long time = System.nanoTime() - start;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double operations = (double) MEASURED_ROUNDS * slots.length * 2;
+        System.out.printf("%s: %.1f ns/op, %.1f bytes/op (%d)%n", name, time / operations, allocated / operations, sink);
+    }
+
+    private long round(BiPredicate<ArchetypeSlot, ArchetypeSlot> equal) {
+        long result = 0;
+        for (int i = 0; i < slots.length; i++) {
+            if (equal.test(slots[i], unchanged[i])) result++;
+            if (equal.test(slots[i], specialized[i])) result++;
+        }
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.diff;
+
+import org.apache.commons.lang.SerializationUtils;
+import org.testng.annotations.Test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class StructuralEqualityTest {
+
+    @Test
+    public void testEqualGraphs() throws Exception {
+        assertThat(StructuralEquality.isEqual(node("id1", leaf("a"), leaf("b")), node("id1", leaf("a"), leaf("b")))).isTrue();
+        assertThat(StructuralEquality.isEqual(null, null)).isTrue();
+    }
+
+    @Test
+    public void testDifferentGraphs() throws Exception {
+        Node node = node("id1", leaf("a"), leaf("b"));
+        assertThat(StructuralEquality.isEqual(node, node("id2", leaf("a"), leaf("b")))).isFalse();
+        assertThat(StructuralEquality.isEqual(node, node("id1", leaf("a"), leaf("c")))).isFalse();
+        assertThat(StructuralEquality.isEqual(node, node("id1", leaf("a")))).isFalse();
+        assertThat(StructuralEquality.isEqual(node, node("id1", leaf("a"), null))).isFalse();
+        assertThat(StructuralEquality.isEqual(node, null)).isFalse();
+
+        Node closed = node("id1", leaf("a"), leaf("b"));
+        closed.closed = true;
+        assertThat(StructuralEquality.isEqual(node, closed)).isFalse();
+    }
+
+    @Test
+    public void testClassesMustMatch() throws Exception {
+        assertThat(StructuralEquality.isEqual(leaf("a"), new SubLeaf("a"))).isFalse();
+    }
+
+    @Test
+    public void testTransientFieldsAreIgnored() throws Exception {
+        Leaf a = leaf("a");
+        a.cached = "x";
+        assertThat(StructuralEquality.isEqual(a, leaf("a"))).isTrue();
+    }
+
+    @Test
+    public void testMatchesSerializedComparison() throws Exception {
+        List<Node> nodes = Arrays.asList(
+                node("id1", leaf("a"), leaf("b")),
+                node("id1", leaf("a"), leaf("b")),
+                node("id1", leaf("b"), leaf("a")),
+                node("id1.1", leaf("a"), leaf("b")),
+                node("id1"),
+                node(null, leaf(null)));
+        for (Node a : nodes) {
+            for (Node b : nodes) {
+                boolean serializedEqual = Arrays.equals(SerializationUtils.serialize(a), SerializationUtils.serialize(b));
+                assertThat(StructuralEquality.isEqual(a, b)).isEqualTo(serializedEqual);
+            }
+        }
+    }
+
+    private static Node node(String nodeId, Leaf... leaves) {
+        Node result = new Node();
+        result.nodeId = nodeId;
+        result.leaves.addAll(Arrays.asList(leaves));
+        return result;
+    }
+
+    private static Leaf leaf(String value) {
+        return new Leaf(value);
+    }
+
+    private static class Node implements Serializable {
+        String nodeId;
+        Boolean closed;
+        final List<Leaf> leaves = new ArrayList<>();
+    }
+
+    private static class Leaf implements Serializable {
+        final String value;
+        transient String cached;
+
+        Leaf(String value) {
+            this.value = value;
+        }
+    }
+
+    private static class SubLeaf extends Leaf {
+        SubLeaf(String value) {
+            super(value);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.io;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import org.openehr.jaxb.am.Archetype;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class TemplateDeserializerTest {
+    // how adlt content was split before it was read as a stream
+    private static final Pattern SEPARATOR_PATTERN = Pattern.compile("(\r|\n)+ *\\-{2,} *(\r|\n)+");
+
+    @Test
+    public void testReadArchetypeSources() throws Exception {
+        assertThat(readArchetypeSources("a\n-----\nb")).containsExactly("a\n", "b");
+        assertThat(readArchetypeSources("a\r\n  --  \r\nb\n\n----\n\nc\n")).containsExactly("a\r\n", "\nb\n\n", "\nc\n");
+        assertThat(readArchetypeSources("a")).containsExactly("a");
+        assertThat(readArchetypeSources("")).containsExactly("");
+    }
+
+    @Test
+    public void testLinesThatAreNotSeparators() throws Exception {
+        assertThat(readArchetypeSources("-----\na")).containsExactly("-----\na");
+        assertThat(readArchetypeSources("a\n-\nb")).containsExactly("a\n-\nb");
+        assertThat(readArchetypeSources("a\n-- x\nb")).containsExactly("a\n-- x\nb");
+        assertThat(readArchetypeSources("a\n-----")).containsExactly("a\n-----");
+    }
+
+    @Test
+    public void testMatchesSplitOnTestTemplates() throws Exception {
+        for (String name : new String[]{"template/openEHR-EHR-COMPOSITION.a.v1.0.0.adlt",
+                "template/encounter_bodyweight_quantity.adlt", "template/encounter_bodyweight_tuple.adlt"}) {
+            URL resource = ClassLoader.getSystemResource(name);
+            String adlt = new String(Files.readAllBytes(Paths.get(resource.toURI())), Charsets.UTF_8);
+
+            List<String> expected = new ArrayList<>();
+            Splitter.on(SEPARATOR_PATTERN).split(adlt).forEach(adl -> expected.add(adl.trim()));
+            List<String> actual = new ArrayList<>();
+            readArchetypeSources(adlt).forEach(adl -> actual.add(adl.trim()));
+
+            assertThat(actual).as(name).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void testParallelParseKeepsOrder() throws Exception {
+        URL resource = ClassLoader.getSystemResource("template/encounter_bodyweight_quantity.adlt");
+        String template = new String(Files.readAllBytes(Paths.get(resource.toURI())), Charsets.UTF_8);
+        // more archetypes than are parsed ahead of the reader, so reading has to wait for the parser
+        int copies = 2 * Runtime.getRuntime().availableProcessors() + 1;
+        byte[] adlt = String.join("\n----------\n", Collections.nCopies(copies, template)).getBytes(Charsets.UTF_8);
+        List<String> expected = toArchetypeIds(TemplateDeserializer.deserialize(adlt));
+        assertThat(expected.size()).isGreaterThan(copies);
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            List<Archetype> parsed = TemplateDeserializer.deserialize(new ByteArrayInputStream(adlt), executor);
+            assertThat(toArchetypeIds(parsed)).isEqualTo(expected);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static List<String> toArchetypeIds(List<Archetype> archetypes) {
+        List<String> result = new ArrayList<>();
+        archetypes.forEach(a -> result.add(a.getArchetypeId().getValue()));
+        return result;
+    }
+
+    private static List<String> readArchetypeSources(String adlt) throws IOException {
+        List<String> result = new ArrayList<>();
+        TemplateDeserializer.readArchetypeSources(new StringReader(adlt), result::add);
+        return result;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.io.opt;
+
+import org.openehr.designer.io.TemplateDeserializer;
+import org.openehr.designer.repository.FlatArchetypeRepository;
+import org.openehr.designer.repository.file.FileArchetypeRepository;
+import org.openehr.jaxb.am.Archetype;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Compares opt export throughput of a shared {@link OptBuilder} against an opt builder and flat archetype repository
+ * created for each export, as was done before, under concurrent exports. Exports need the marand-local profile;
+ * without it only the cost of looking up the exporter is measured.
+ */
+public class OptBuilderBenchmarkManual {
+    private static final int[] THREADS = {1, 4, 8};
+    private static final long WARMUP_MILLIS = 3000;
+    private static final long MEASURED_MILLIS = 10000;
+    private static final int LOOKUP_OPERATIONS = 10000;
+
+    private FileArchetypeRepository repository;
+    private List<Archetype> template;
+
+    @BeforeClass
+    public void init() throws Exception {
+        URL resource = ClassLoader.getSystemResource("repository/openEHR-EHR-OBSERVATION.blood_pressure.v1.adls");
+        Path repositoryPath = Paths.get(resource.toURI()).getParent();
+        repository = new FileArchetypeRepository();
+        repository.setRepositoryLocation(repositoryPath.toString());
+        repository.setUseIndexFile(false);
+        repository.init();
+
+        try (InputStream in = ClassLoader.getSystemResourceAsStream("template/encounter_bodyweight_quantity.adlt")) {
+            template = TemplateDeserializer.deserialize(in);
+        }
+    }
+
+    @Test
+    public void benchmarkExporterLookup() throws Exception {
+        long start = System.nanoTime();
+        boolean enabled = false;
+        for (int i = 0; i < LOOKUP_OPERATIONS; i++) {
+            OptBuilder builder = new OptBuilder();
+            builder.init();
+            enabled = builder.enabled();
+        }
+        long time = System.nanoTime() - start;
+        System.out.printf("exporter lookup: %.1f us/op (enabled=%s)%n", time / 1000.0 / LOOKUP_OPERATIONS, enabled);
+    }
+
+    @Test
+    public void benchmarkPerRequestBuilder() throws Exception {
+        if (!isExporterAvailable()) return;
+        for (int threads : THREADS) {
+            run("per request", threads, () -> {
+                OptBuilder builder = new OptBuilder();
+                builder.init();
+                return builder.build(new FlatArchetypeRepository(repository), template);
+            });
+        }
+    }
+
+    @Test
+    public void benchmarkSharedBuilder() throws Exception {
+        if (!isExporterAvailable()) return;
+        OptBuilder builder = new OptBuilder();
+        builder.init();
+        FlatArchetypeRepository flatArchetypeRepository = new FlatArchetypeRepository(repository);
+        for (int threads : THREADS) {
+            run("shared", threads, () -> builder.build(flatArchetypeRepository, template));
+        }
+    }
+
+    private boolean isExporterAvailable() {
+        OptBuilder builder = new OptBuilder();
+        builder.init();
+        if (!builder.enabled()) {
+            System.out.println("Opt exporter is not available, run with the marand-local profile");
+        }
+        return builder.enabled();
+    }
+
+    private void run(String name, int threads, Export export) throws Exception {
+        measure(threads, WARMUP_MILLIS, export);
+        long exports = measure(threads, MEASURED_MILLIS, export);
+        System.out.printf("%s, %d threads: %.1f exports/s%n", name, threads, exports * 1000.0 / MEASURED_MILLIS);
+    }
+
+    private long measure(int threads, long millis, Export export) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            AtomicBoolean running = new AtomicBoolean(true);
+            List<Future<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(() -> {
+                    long count = 0;
+                    while (running.get()) {
+                        export.build();
+                        count++;
+                    }
+                    return count;
+                }));
+            }
+            TimeUnit.MILLISECONDS.sleep(millis);
+            running.set(false);
+            long result = 0;
+            for (Future<Long> future : futures) {
+                result += future.get();
+            }
+            return result;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface Export {
+        OptBuilder.Opt build() throws Exception;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import com.google.common.base.Charsets;
+import org.testng.annotations.Test;
+
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class SaveValidationPolicyTest {
+
+    @Test
+    public void testSyntaxModeAcceptsTestSources() throws Exception {
+        SaveValidationPolicy policy = new SaveValidationPolicy(SaveValidationPolicy.Mode.SYNTAX, 1);
+        AtomicInteger parsed = new AtomicInteger();
+        policy.validate(SaveValidationPolicy.Kind.ARCHETYPE,
+                read("repository/openEHR-EHR-OBSERVATION.blood_pressure.v1.adls"), s -> parsed.incrementAndGet());
+        policy.validate(SaveValidationPolicy.Kind.TEMPLATE,
+                read("template/openEHR-EHR-COMPOSITION.a.v1.0.0.adlt"), s -> parsed.incrementAndGet());
+
+        assertThat(parsed.get()).isEqualTo(0);
+        assertThat(policy.getStatistics().getScanned()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSyntaxModeParsesSuspiciousSources() throws Exception {
+        SaveValidationPolicy policy = new SaveValidationPolicy(SaveValidationPolicy.Mode.SYNTAX, 1);
+        String adl = read("repository/openEHR-EHR-OBSERVATION.blood_pressure.v1.adls");
+        AtomicInteger parsed = new AtomicInteger();
+        policy.validate(SaveValidationPolicy.Kind.ARCHETYPE, adl.substring(0, adl.indexOf("terminology")),
+                s -> parsed.incrementAndGet());
+        policy.validate(SaveValidationPolicy.Kind.ARCHETYPE, "not an archetype", s -> parsed.incrementAndGet());
+
+        assertThat(parsed.get()).isEqualTo(2);
+        assertThat(policy.getStatistics().getScanSuspicious()).isEqualTo(2);
+    }
+
+    @Test
+    public void testSampledMode() throws Exception {
+        SaveValidationPolicy policy = new SaveValidationPolicy(SaveValidationPolicy.Mode.SAMPLED, 3);
+        AtomicInteger parsed = new AtomicInteger();
+        for (int i = 0; i < 9; i++) {
+            policy.validate(SaveValidationPolicy.Kind.ARCHETYPE, "", s -> parsed.incrementAndGet());
+        }
+        // the first save checks the serializer version, then every third save is checked
+        assertThat(parsed.get()).isEqualTo(4);
+        assertThat(policy.getStatistics().getSkipped()).isEqualTo(5);
+    }
+
+    @Test
+    public void testFailuresAreCounted() throws Exception {
+        SaveValidationPolicy policy = new SaveValidationPolicy(SaveValidationPolicy.Mode.FULL, 1);
+        Consumer<String> failingParser = s -> {
+            throw new IllegalStateException("unreadable");
+        };
+        try {
+            policy.validate(SaveValidationPolicy.Kind.TEMPLATE, "", failingParser);
+            throw new AssertionError("Expected parser exception");
+        } catch (IllegalStateException e) {
+            assertThat(e.getMessage()).isEqualTo("unreadable");
+        }
+        policy.validate(SaveValidationPolicy.Kind.TEMPLATE, "", s -> {
+        });
+
+        assertThat(policy.getStatistics().getParsed()).isEqualTo(2);
+        assertThat(policy.getStatistics().getFailed()).isEqualTo(1);
+    }
+
+    @Test
+    public void testNoneMode() throws Exception {
+        SaveValidationPolicy policy = new SaveValidationPolicy(SaveValidationPolicy.Mode.NONE, 1);
+        policy.validate(SaveValidationPolicy.Kind.ARCHETYPE, "", s -> {
+            throw new IllegalStateException();
+        });
+        assertThat(policy.getStatistics().getSkipped()).isEqualTo(1);
+    }
+
+    private static String read(String resource) throws Exception {
+        URL url = ClassLoader.getSystemResource(resource);
+        return new String(Files.readAllBytes(Paths.get(url.toURI())), Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository;
+
+import com.google.common.base.Charsets;
+import org.openehr.adl.parser.AdlDeserializer;
+import org.openehr.jaxb.am.Archetype;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class WriteBehindArchetypeRepositoryTest {
+    private static final String BODY_WEIGHT = "openEHR-EHR-OBSERVATION.body_weight.v1";
+    private static final String BLOOD_PRESSURE = "openEHR-EHR-OBSERVATION.blood_pressure.v1";
+
+    private Path journalDirectory;
+    private final List<WriteBehindArchetypeRepository> repositories = new ArrayList<>();
+
+    @BeforeMethod
+    public void setUp() throws IOException {
+        journalDirectory = Files.createTempDirectory("journal");
+    }
+
+    @AfterMethod
+    public void tearDown() throws IOException {
+        repositories.forEach(WriteBehindArchetypeRepository::close);
+        repositories.clear();
+        try (Stream<Path> files = Files.walk(journalDirectory)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    @Test
+    public void testQueuedSavesAreCoalesced() throws Exception {
+        RecordingRepository delegate = new RecordingRepository();
+        delegate.blocked = new CountDownLatch(1);
+        WriteBehindArchetypeRepository repository = createRepository(delegate);
+
+        repository.saveDifferentialArchetype(read(BLOOD_PRESSURE));
+        await(() -> delegate.attempts.size() == 1);
+        // blood pressure is being pushed, so both saves of body weight are queued behind it
+        repository.saveDifferentialArchetype(read(BODY_WEIGHT));
+        Archetype changed = read(BODY_WEIGHT);
+        changed.getDefinition().setRmTypeName("CHANGED");
+        repository.saveDifferentialArchetype(changed);
+
+        assertThat(repository.getSaveStatuses()).hasSize(2);
+        assertThat(listJournal()).hasSize(2);
+        assertThat(repository.getDifferentialArchetype(BODY_WEIGHT).getDefinition().getRmTypeName())
+                .isEqualTo("CHANGED");
+
+        delegate.blocked.countDown();
+        await(() -> repository.getSaveStatuses().isEmpty());
+        assertThat(delegate.pushed).containsExactly(BLOOD_PRESSURE, BODY_WEIGHT);
+        assertThat(delegate.saved.get(BODY_WEIGHT).getDefinition().getRmTypeName()).isEqualTo("CHANGED");
+        assertThat(listJournal()).isEmpty();
+    }
+
+    @Test
+    public void testFailedSaveHoldsBackLaterSaves() throws Exception {
+        RecordingRepository delegate = new RecordingRepository();
+        delegate.failures.put(BLOOD_PRESSURE, new RepositoryException("unavailable"));
+        WriteBehindArchetypeRepository repository = createRepository(delegate);
+        repository.setRetryDelay(500);
+
+        repository.saveDifferentialArchetype(read(BLOOD_PRESSURE));
+        repository.saveDifferentialArchetype(read(BODY_WEIGHT));
+        await(() -> repository.getSaveStatuses().get(0).getState() == WriteBehindArchetypeRepository.SaveState.FAILED);
+
+        List<WriteBehindArchetypeRepository.SaveStatus> statuses = repository.getSaveStatuses();
+        assertThat(statuses.get(0).getArchetypeId()).isEqualTo(BLOOD_PRESSURE);
+        assertThat(statuses.get(0).getError()).isEqualTo("unavailable");
+        assertThat(statuses.get(1).getState()).isEqualTo(WriteBehindArchetypeRepository.SaveState.QUEUED);
+        assertThat(delegate.pushed).isEmpty();
+
+        await(() -> repository.getSaveStatuses().isEmpty());
+        assertThat(delegate.attempts).containsExactly(BLOOD_PRESSURE, BLOOD_PRESSURE, BODY_WEIGHT);
+        assertThat(delegate.pushed).containsExactly(BLOOD_PRESSURE, BODY_WEIGHT);
+    }
+
+    @Test
+    public void testRejectedSaveIsDropped() throws Exception {
+        RecordingRepository delegate = new RecordingRepository();
+        delegate.failures.put(BLOOD_PRESSURE, new RepositoryAccessException("no access"));
+        WriteBehindArchetypeRepository repository = createRepository(delegate);
+
+        repository.saveDifferentialArchetype(read(BLOOD_PRESSURE));
+        repository.saveDifferentialArchetype(read(BODY_WEIGHT));
+        await(() -> delegate.pushed.size() == 1);
+
+        assertThat(delegate.pushed).containsExactly(BODY_WEIGHT);
+        List<WriteBehindArchetypeRepository.SaveStatus> statuses = repository.getSaveStatuses();
+        assertThat(statuses).hasSize(1);
+        assertThat(statuses.get(0).getArchetypeId()).isEqualTo(BLOOD_PRESSURE);
+        assertThat(statuses.get(0).getState()).isEqualTo(WriteBehindArchetypeRepository.SaveState.REJECTED);
+        assertThat(listJournal()).isEmpty();
+    }
+
+    @Test
+    public void testJournalIsReplayedInQueueOrder() throws Exception {
+        RecordingRepository unavailable = new RecordingRepository();
+        unavailable.blocked = new CountDownLatch(1);
+        WriteBehindArchetypeRepository first = createRepository(unavailable);
+        first.saveDifferentialArchetype(read(BLOOD_PRESSURE));
+        await(() -> unavailable.attempts.size() == 1);
+        first.saveDifferentialArchetype(read(BODY_WEIGHT));
+        // coalescing rewrites the journal file of blood pressure after body weight was queued
+        first.saveDifferentialArchetype(read(BLOOD_PRESSURE));
+        for (Path journalFile : listJournal()) {
+            boolean bloodPressure = journalFile.getFileName().toString().contains("blood_pressure");
+            Files.setLastModifiedTime(journalFile, FileTime.fromMillis(
+                    System.currentTimeMillis() + (bloodPressure ? 60000 : 0)));
+        }
+        first.close();
+
+        RecordingRepository delegate = new RecordingRepository();
+        WriteBehindArchetypeRepository second = createRepository(delegate);
+        second.init();
+        await(() -> second.getSaveStatuses().isEmpty());
+        assertThat(delegate.pushed).containsExactly(BLOOD_PRESSURE, BODY_WEIGHT);
+        assertThat(listJournal()).isEmpty();
+
+        // saves made after the replay are queued behind the replayed ones
+        delegate.blocked = new CountDownLatch(1);
+        second.saveDifferentialArchetype(read(BODY_WEIGHT));
+        assertThat(listJournal().get(0).getFileName().toString()).startsWith("3-");
+    }
+
+    private WriteBehindArchetypeRepository createRepository(ArchetypeRepository delegate) {
+        WriteBehindArchetypeRepository result = new WriteBehindArchetypeRepository(delegate, journalDirectory);
+        result.setSaveValidationPolicy(new SaveValidationPolicy(SaveValidationPolicy.Mode.SYNTAX, 1));
+        repositories.add(result);
+        return result;
+    }
+
+    private List<Path> listJournal() throws IOException {
+        try (Stream<Path> files = Files.list(journalDirectory)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".adls")).collect(Collectors.toList());
+        }
+    }
+
+    private static Archetype read(String archetypeId) throws Exception {
+        URL resource = WriteBehindArchetypeRepositoryTest.class.getClassLoader()
+                .getResource("repository/" + archetypeId + ".adls");
+        return new AdlDeserializer().parse(new String(Files.readAllBytes(Paths.get(resource.toURI())), Charsets.UTF_8));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (!condition.getAsBoolean()) {
+            assertThat(System.currentTimeMillis()).isLessThan(deadline);
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Records pushes. A push fails once with the exception registered for the archetype, and waits while blocked.
+     */
+    private static class RecordingRepository implements ArchetypeRepository {
+        final List<String> attempts = Collections.synchronizedList(new ArrayList<>());
+        final List<String> pushed = Collections.synchronizedList(new ArrayList<>());
+        final Map<String, Archetype> saved = Collections.synchronizedMap(new HashMap<>());
+        final Map<String, RuntimeException> failures = Collections.synchronizedMap(new HashMap<>());
+        volatile CountDownLatch blocked;
+
+        @Override
+        public Archetype getDifferentialArchetype(String archetypeId) {
+            return saved.get(archetypeId);
+        }
+
+        @Override
+        public void saveDifferentialArchetype(Archetype archetype) {
+            String archetypeId = archetype.getArchetypeId().getValue();
+            attempts.add(archetypeId);
+            if (blocked != null) {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RepositoryException(e);
+                }
+            }
+            RuntimeException failure = failures.remove(archetypeId);
+            if (failure != null) {
+                throw failure;
+            }
+            pushed.add(archetypeId);
+            saved.put(archetypeId, archetype);
+        }
+
+        @Override
+        public List<ArchetypeInfo> getArchetypeInfos() {
+            return new ArrayList<>();
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.file;
+
+import com.google.common.base.Charsets;
+import org.openehr.adl.serializer.ArchetypeSerializer;
+import org.openehr.designer.repository.ArchetypeInfo;
+import org.openehr.jaxb.am.Archetype;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class FileArchetypeRepositoryTest {
+
+    @Test
+    public void testParallelParseKeepsOrder() throws Exception {
+        FileArchetypeRepository serial = createRepository(1);
+        FileArchetypeRepository parallel = createRepository(4);
+
+        List<String> serialIds = toArchetypeIds(serial.getArchetypeInfos());
+        assertThat(serialIds).isNotEmpty();
+        assertThat(toArchetypeIds(parallel.getArchetypeInfos())).isEqualTo(serialIds);
+    }
+
+    @Test
+    public void testIndexFileWarmStart() throws Exception {
+        Path repositoryPath = copyTestRepository();
+        try {
+            FileArchetypeRepository cold = createIndexedRepository(repositoryPath);
+            assertThat(Files.exists(repositoryPath.resolve(FileArchetypeRepository.INDEX_FILE_NAME))).isTrue();
+            assertThat(cold.getLoadProgress().getFilesIndexed()).isEqualTo(0);
+
+            FileArchetypeRepository warm = createIndexedRepository(repositoryPath);
+            assertThat(warm.getLoadProgress().getFilesIndexed()).isEqualTo(warm.getLoadProgress().getFilesScanned());
+            assertThat(toArchetypeIds(warm.getArchetypeInfos())).isEqualTo(toArchetypeIds(cold.getArchetypeInfos()));
+        } finally {
+            deleteRecursively(repositoryPath);
+        }
+    }
+
+    @Test
+    public void testIndexFileReparsesChangedFiles() throws Exception {
+        Path repositoryPath = copyTestRepository();
+        try {
+            FileArchetypeRepository cold = createIndexedRepository(repositoryPath);
+            int fileCount = cold.getLoadProgress().getFilesScanned();
+
+            Path resized = repositoryPath.resolve("openEHR-EHR-OBSERVATION.blood_pressure.v1.adls");
+            Files.write(resized, "\n".getBytes(Charsets.UTF_8), StandardOpenOption.APPEND);
+            Path touched = repositoryPath.resolve("openEHR-EHR-OBSERVATION.body_weight.v1.adls");
+            Files.setLastModifiedTime(touched, FileTime.fromMillis(
+                    Files.getLastModifiedTime(touched).toMillis() + TimeUnit.MINUTES.toMillis(1)));
+
+            FileArchetypeRepository warm = createIndexedRepository(repositoryPath);
+            assertThat(warm.getLoadProgress().getFilesIndexed()).isEqualTo(fileCount - 2);
+            assertThat(warm.getLoadProgress().getFilesParsed()).isEqualTo(fileCount);
+
+            FileArchetypeRepository again = createIndexedRepository(repositoryPath);
+            assertThat(again.getLoadProgress().getFilesIndexed()).isEqualTo(fileCount);
+        } finally {
+            deleteRecursively(repositoryPath);
+        }
+    }
+
+    @Test
+    public void testNoIndexFileByDefault() throws Exception {
+        Path repositoryPath = copyTestRepository();
+        try {
+            FileArchetypeRepository repository = new FileArchetypeRepository();
+            repository.setRepositoryLocation(repositoryPath.toString());
+            repository.init();
+            assertThat(Files.exists(repositoryPath.resolve(FileArchetypeRepository.INDEX_FILE_NAME))).isFalse();
+        } finally {
+            deleteRecursively(repositoryPath);
+        }
+    }
+
+    @Test
+    public void testLoadedArchetypesAreCopiesOfTheFile() throws Exception {
+        Path repositoryPath = copyTestRepository();
+        try {
+            FileArchetypeRepository repository = new FileArchetypeRepository();
+            repository.setRepositoryLocation(repositoryPath.toString());
+            repository.init();
+            String archetypeId = "openEHR-EHR-OBSERVATION.body_weight.v1";
+
+            Archetype loaded = repository.getDifferentialArchetype(archetypeId);
+            loaded.getDefinition().setRmTypeName("CLUSTER");
+            assertThat(repository.getDifferentialArchetype(archetypeId).getDefinition().getRmTypeName())
+                    .isEqualTo("OBSERVATION");
+
+            Path file = repositoryPath.resolve(archetypeId + ".adls");
+            String adl = new String(Files.readAllBytes(file), Charsets.UTF_8);
+            Files.write(file, adl.replace("text = <\"Body weight\">", "text = <\"Body mass\">").getBytes(Charsets.UTF_8));
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(1)));
+            assertThat(ArchetypeSerializer.serialize(repository.getDifferentialArchetype(archetypeId)))
+                    .contains("Body mass")
+                    .doesNotContain("\"Body weight\"");
+        } finally {
+            deleteRecursively(repositoryPath);
+        }
+    }
+
+    private FileArchetypeRepository createIndexedRepository(Path repositoryPath) throws Exception {
+        FileArchetypeRepository repository = new FileArchetypeRepository();
+        repository.setRepositoryLocation(repositoryPath.toString());
+        repository.setUseIndexFile(true);
+        repository.init();
+        return repository;
+    }
+
+    private Path copyTestRepository() throws Exception {
+        Path repositoryPath = Files.createTempDirectory("adl-designer-repository");
+        try (DirectoryStream<Path> adlFiles = Files.newDirectoryStream(getTestRepositoryPath(), "*.adls")) {
+            for (Path adlFile : adlFiles) {
+                Files.copy(adlFile, repositoryPath.resolve(adlFile.getFileName()), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+        return repositoryPath;
+    }
+
+    private void deleteRecursively(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    private FileArchetypeRepository createRepository(int parseThreads) throws Exception {
+        FileArchetypeRepository repository = new FileArchetypeRepository();
+        repository.setRepositoryLocation(getTestRepositoryPath().toString());
+        repository.setParseThreads(parseThreads);
+        repository.setUseIndexFile(false);
+        repository.init();
+        return repository;
+    }
+
+    private List<String> toArchetypeIds(List<ArchetypeInfo> infos) {
+        return infos.stream().map(ArchetypeInfo::getArchetypeId).collect(Collectors.toList());
+    }
+
+    private Path getTestRepositoryPath() throws Exception {
+        URL url = getClass().getClassLoader().getResource("repository/openEHR-EHR-COMPOSITION.encounter.v1.adls");
+        return Paths.get(url.toURI()).getParent();
+    }
+}
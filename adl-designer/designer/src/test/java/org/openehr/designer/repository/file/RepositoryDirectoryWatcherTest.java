@@ -0,0 +1,178 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.file;
+
+import com.google.common.base.Charsets;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RepositoryDirectoryWatcherTest {
+    private static final long DEBOUNCE_MILLIS = 100;
+    private static final long TIMEOUT_MILLIS = 15000;
+    private static final Object RESCAN = "rescan";
+
+    private Path directory;
+    private RepositoryDirectoryWatcher watcher;
+    // changed file sets and RESCAN markers, in the order the listener received them
+    private final BlockingQueue<Object> notifications = new LinkedBlockingQueue<>();
+
+    @BeforeMethod
+    public void setUp() throws Exception {
+        directory = Files.createTempDirectory("adl-designer-watcher");
+        write("existing.adls", "existing");
+        write("deleted.adls", "deleted");
+        Files.createDirectories(directory.resolve("sub"));
+        Files.createDirectories(directory.resolve(".hidden"));
+        notifications.clear();
+
+        watcher = new RepositoryDirectoryWatcher(directory,
+                dir -> !dir.getFileName().toString().startsWith("."),
+                file -> file.getFileName().toString().endsWith(".adls"),
+                new RepositoryDirectoryWatcher.Listener() {
+                    @Override
+                    public void filesChanged(Set<Path> changedFiles) {
+                        notifications.add(new HashSet<>(changedFiles));
+                    }
+
+                    @Override
+                    public void rescan() {
+                        notifications.add(RESCAN);
+                    }
+                }, DEBOUNCE_MILLIS);
+        watcher.start();
+    }
+
+    @AfterMethod
+    public void tearDown() throws Exception {
+        watcher.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void testReportsTouchedCreatedAndDeletedFiles() throws Exception {
+        write("existing.adls", "modified");
+        write("created.adls", "created");
+        Files.delete(directory.resolve("deleted.adls"));
+        write("ignored.txt", "not an archetype");
+        write(".hidden/ignored.adls", "in an ignored directory");
+
+        Set<Path> changed = awaitChangedFiles(paths("existing.adls", "created.adls", "deleted.adls"));
+        assertThat(changed).isEqualTo(paths("existing.adls", "created.adls", "deleted.adls"));
+        assertThat(notifications).excludes(RESCAN);
+    }
+
+    @Test
+    public void testReportsFilesInCreatedDirectories() throws Exception {
+        Files.createDirectories(directory.resolve("new/nested"));
+        write("new/nested/created.adls", "created");
+        write("sub/created.adls", "created");
+
+        awaitChangedFiles(paths("new/nested/created.adls", "sub/created.adls"));
+    }
+
+    @Test
+    public void testRescansWhenWatchedDirectoryIsDeleted() throws Exception {
+        Files.delete(directory.resolve("sub"));
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        Object notification;
+        do {
+            notification = notifications.poll(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            assertThat(notification).as("rescan notification").isNotNull();
+        } while (notification != RESCAN);
+    }
+
+    @Test
+    public void testDebounceDelayIsCapped() throws Exception {
+        long cap = DEBOUNCE_MILLIS * RepositoryDirectoryWatcher.MAX_DEBOUNCE_DELAYS;
+        long start = System.currentTimeMillis();
+        long end = start + cap * 3;
+        int i = 0;
+        // changes arrive faster than the debounce delay, so only the cap triggers a notification
+        while (System.currentTimeMillis() < end && notifications.isEmpty()) {
+            write("busy.adls", "change " + i++);
+            Thread.sleep(DEBOUNCE_MILLIS / 4);
+        }
+        assertThat(notifications).as("notified while changes continue").isNotEmpty();
+        assertThat(notifications.peek()).isEqualTo(paths("busy.adls"));
+    }
+
+    @Test
+    public void testNoNotificationsAfterClose() throws Exception {
+        watcher.close();
+        write("created.adls", "created");
+
+        assertThat(notifications.poll(DEBOUNCE_MILLIS * 5, TimeUnit.MILLISECONDS)).isNull();
+    }
+
+    private Set<Path> awaitChangedFiles(Set<Path> expected) throws InterruptedException {
+        Set<Path> result = new HashSet<>();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!result.containsAll(expected)) {
+            Object notification = notifications.poll(Math.max(0, deadline - System.currentTimeMillis()),
+                    TimeUnit.MILLISECONDS);
+            assertThat(notification).as("notification of " + expected + ", received " + result).isNotNull();
+            if (notification instanceof Set) {
+                for (Object path : (Set<?>) notification) {
+                    result.add((Path) path);
+                }
+            }
+        }
+        // changes of the same burst may still be in flight
+        Object late;
+        while ((late = notifications.poll(DEBOUNCE_MILLIS * 3, TimeUnit.MILLISECONDS)) != null) {
+            if (late instanceof Set) {
+                for (Object path : (Set<?>) late) {
+                    result.add((Path) path);
+                }
+            }
+        }
+        return result;
+    }
+
+    private void write(String path, String content) throws IOException {
+        Files.write(directory.resolve(path), content.getBytes(Charsets.UTF_8));
+    }
+
+    private static Set<Path> paths(String... paths) {
+        Set<Path> result = new HashSet<>();
+        Arrays.stream(paths).map(Paths::get).forEach(result::add);
+        return result;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.github;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import org.eclipse.egit.github.core.Blob;
+import org.eclipse.egit.github.core.Commit;
+import org.eclipse.egit.github.core.IRepositoryIdProvider;
+import org.eclipse.egit.github.core.Reference;
+import org.eclipse.egit.github.core.RepositoryId;
+import org.eclipse.egit.github.core.RequestError;
+import org.eclipse.egit.github.core.Tree;
+import org.eclipse.egit.github.core.TreeEntry;
+import org.eclipse.egit.github.core.TypedResource;
+import org.eclipse.egit.github.core.client.RequestException;
+import org.eclipse.egit.github.core.service.DataService;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.fest.assertions.Assertions.assertThat;
+import static org.fest.assertions.Fail.fail;
+
+public class GithubCommitBatcherTest {
+    private static final RepositoryId REPOSITORY = new RepositoryId("owner", "repo");
+
+    @Test
+    public void testBlobShaMatchesGit() {
+        // expected values as printed by git hash-object
+        assertThat(GithubCommitBatcher.blobSha(new byte[0])).isEqualTo("e69de29bb2d1d6434b8b29ae775ad8c2e48c5391");
+        assertThat(GithubCommitBatcher.blobSha("hello\n".getBytes(Charsets.UTF_8)))
+                .isEqualTo("ce013625030ba8dba906f756967f9e9ca394464a");
+        assertThat(GithubCommitBatcher.blobSha("K\u00f6rpergewicht\n".getBytes(Charsets.UTF_8)))
+                .isEqualTo("73bc9d96a2494c8574333114b00ae1517ba33e32");
+    }
+
+    @Test
+    public void testCommit() throws Exception {
+        StubDataService dataService = new StubDataService(0, 0);
+
+        String sha = new GithubCommitBatcher(dataService, REPOSITORY, "master").commit("message",
+                ImmutableMap.of("a.adls", new byte[]{1}, "metadata.json", new byte[]{2}));
+
+        assertThat(sha).isEqualTo("commit-1");
+        assertThat(dataService.blobs).isEqualTo(2);
+        assertThat(dataService.treePaths).containsExactly("a.adls", "metadata.json");
+        assertThat(dataService.head).isEqualTo("commit-1");
+    }
+
+    @Test
+    public void testRetriesWhenBranchMoves() throws Exception {
+        StubDataService dataService = new StubDataService(2, 422);
+
+        String sha = new GithubCommitBatcher(dataService, REPOSITORY, "master").commit("message",
+                ImmutableMap.of("a.adls", new byte[]{1}));
+
+        // blobs do not depend on the head, so they are not uploaded again
+        assertThat(dataService.blobs).isEqualTo(1);
+        assertThat(dataService.referenceReads).isEqualTo(3);
+        assertThat(sha).isEqualTo("commit-3");
+        // the last attempt is built on the head the branch moved to
+        assertThat(dataService.lastParent).isEqualTo("moved-2");
+        assertThat(dataService.head).isEqualTo("commit-3");
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() throws Exception {
+        StubDataService dataService = new StubDataService(Integer.MAX_VALUE, 422);
+        try {
+            new GithubCommitBatcher(dataService, REPOSITORY, "master").commit("message",
+                    ImmutableMap.of("a.adls", new byte[]{1}));
+            fail("Expected RequestException");
+        } catch (RequestException e) {
+            assertThat(e.getStatus()).isEqualTo(422);
+        }
+        assertThat(dataService.referenceReads).isEqualTo(3);
+    }
+
+    @Test
+    public void testDoesNotRetryOtherErrors() throws Exception {
+        StubDataService dataService = new StubDataService(Integer.MAX_VALUE, 403);
+        try {
+            new GithubCommitBatcher(dataService, REPOSITORY, "master").commit("message",
+                    ImmutableMap.of("a.adls", new byte[]{1}));
+            fail("Expected RequestException");
+        } catch (RequestException e) {
+            assertThat(e.getStatus()).isEqualTo(403);
+        }
+        assertThat(dataService.referenceReads).isEqualTo(1);
+    }
+
+    /**
+     * Keeps a single branch in memory. The first reference updates are rejected with the given status, and each
+     * rejection moves the branch to a new head, as a concurrent commit would.
+     */
+    private static class StubDataService extends DataService {
+        private int rejections;
+        private final int rejectionStatus;
+        private String head = "initial";
+        private int blobs;
+        private int referenceReads;
+        private int commits;
+        private int moves;
+        private String lastParent;
+        private List<String> treePaths;
+
+        StubDataService(int rejections, int rejectionStatus) {
+            this.rejections = rejections;
+            this.rejectionStatus = rejectionStatus;
+        }
+
+        @Override
+        public String createBlob(IRepositoryIdProvider repository, Blob blob) throws IOException {
+            blobs++;
+            return "blob-" + blobs;
+        }
+
+        @Override
+        public Reference getReference(IRepositoryIdProvider repository, String name) throws IOException {
+            assertThat(name).isEqualTo("heads/master");
+            referenceReads++;
+            TypedResource object = new TypedResource();
+            object.setSha(head);
+            return new Reference().setRef("refs/" + name).setObject(object);
+        }
+
+        @Override
+        public Commit getCommit(IRepositoryIdProvider repository, String sha) throws IOException {
+            return new Commit().setSha(sha).setTree(new Tree().setSha("tree-of-" + sha));
+        }
+
+        @Override
+        public Tree createTree(IRepositoryIdProvider repository, Collection<TreeEntry> entries, String baseTree)
+                throws IOException {
+            treePaths = new ArrayList<>();
+            entries.forEach(e -> treePaths.add(e.getPath()));
+            return new Tree().setSha("tree");
+        }
+
+        @Override
+        public Commit createCommit(IRepositoryIdProvider repository, Commit commit) throws IOException {
+            commits++;
+            lastParent = commit.getParents().get(0).getSha();
+            return new Commit().setSha("commit-" + commits);
+        }
+
+        @Override
+        public Reference editReference(IRepositoryIdProvider repository, Reference reference) throws IOException {
+            if (rejections > 0) {
+                rejections--;
+                moves++;
+                head = "moved-" + moves;
+                throw new RequestException(new RequestError(), rejectionStatus);
+            }
+            head = reference.getObject().getSha();
+            return reference;
+        }
+    }
+}
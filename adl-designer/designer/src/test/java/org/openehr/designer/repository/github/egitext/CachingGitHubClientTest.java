@@ -0,0 +1,180 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.github.egitext;
+
+import com.google.common.base.Charsets;
+import org.eclipse.egit.github.core.client.GitHubRequest;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CachingGitHubClientTest {
+
+    @Test
+    public void testNotModifiedIsServedFromRememberedBody() throws Exception {
+        String uri = uniqueUri();
+        StubClient client = new StubClient();
+        client.setOAuth2Token("token-a");
+
+        client.respond(200, "\"e1\"", "{\"name\":\"first\"}");
+        assertThat(get(client, uri)).isEqualTo("first");
+        assertThat(client.sent.get(0).getRequestProperty("If-None-Match")).isNull();
+
+        client.respond(304, null, null);
+        assertThat(get(client, uri)).isEqualTo("first");
+        assertThat(client.sent.get(1).getRequestProperty("If-None-Match")).isEqualTo("\"e1\"");
+    }
+
+    @Test
+    public void testChangedResponseReplacesRememberedBody() throws Exception {
+        String uri = uniqueUri();
+        StubClient client = new StubClient();
+        client.setOAuth2Token("token-a");
+
+        client.respond(200, "\"e1\"", "{\"name\":\"first\"}");
+        get(client, uri);
+        client.respond(200, "\"e2\"", "{\"name\":\"second\"}");
+        assertThat(get(client, uri)).isEqualTo("second");
+        assertThat(client.sent.get(1).getRequestProperty("If-None-Match")).isEqualTo("\"e1\"");
+
+        client.respond(304, null, null);
+        assertThat(get(client, uri)).isEqualTo("second");
+        assertThat(client.sent.get(2).getRequestProperty("If-None-Match")).isEqualTo("\"e2\"");
+    }
+
+    @Test
+    public void testResponsesAreNotSharedBetweenCredentials() throws Exception {
+        String uri = uniqueUri();
+        StubClient first = new StubClient();
+        first.setOAuth2Token("token-a");
+        first.respond(200, "\"e1\"", "{\"name\":\"visible to a\"}");
+        get(first, uri);
+
+        StubClient second = new StubClient();
+        second.setOAuth2Token("token-b");
+        second.respond(200, "\"e1\"", "{\"name\":\"visible to b\"}");
+        assertThat(get(second, uri)).isEqualTo("visible to b");
+        assertThat(second.sent.get(0).getRequestProperty("If-None-Match")).isNull();
+
+        StubClient sameToken = new StubClient();
+        sameToken.setOAuth2Token("token-a");
+        sameToken.respond(304, null, null);
+        assertThat(get(sameToken, uri)).isEqualTo("visible to a");
+    }
+
+    private static String get(StubClient client, String uri) throws IOException {
+        GitHubRequest request = new GitHubRequest();
+        request.setUri(uri);
+        request.setType(Named.class);
+        return ((Named) client.get(request).getBody()).name;
+    }
+
+    private static String uniqueUri() {
+        // responses are remembered for the whole process, so each test uses its own resource
+        return "/repos/owner/" + UUID.randomUUID();
+    }
+
+    private static class Named {
+        String name;
+    }
+
+    private static class StubClient extends CachingGitHubClient {
+        private final Deque<StubConnection> responses = new ArrayDeque<>();
+        private final List<StubConnection> sent = new ArrayList<>();
+
+        void respond(int code, String etag, String body) throws IOException {
+            responses.add(new StubConnection(new URL("https://api.github.com"), code, etag, body));
+        }
+
+        @Override
+        protected HttpURLConnection createConnection(String uri) throws IOException {
+            StubConnection connection = responses.remove();
+            sent.add(connection);
+            return connection;
+        }
+    }
+
+    private static class StubConnection extends HttpURLConnection {
+        private final int code;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final Map<String, String> requestProperties = new HashMap<>();
+
+        StubConnection(URL url, int code, String etag, String body) {
+            super(url);
+            this.code = code;
+            this.headers = etag != null ? Collections.singletonMap("ETag", etag) : Collections.emptyMap();
+            this.body = body != null ? body.getBytes(Charsets.UTF_8) : new byte[0];
+        }
+
+        @Override
+        public int getResponseCode() {
+            return code;
+        }
+
+        @Override
+        public String getHeaderField(String name) {
+            return headers.get(name);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public void setRequestProperty(String key, String value) {
+            requestProperties.put(key, value);
+        }
+
+        @Override
+        public String getRequestProperty(String key) {
+            return requestProperties.get(key);
+        }
+
+        @Override
+        public void connect() {
+        }
+
+        @Override
+        public void disconnect() {
+        }
+
+        @Override
+        public boolean usingProxy() {
+            return false;
+        }
+    }
+}
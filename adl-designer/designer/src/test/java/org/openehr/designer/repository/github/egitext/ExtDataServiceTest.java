@@ -0,0 +1,73 @@
+/*
+ * ADL Designer
+ * Copyright (c) 2013-2014 Marand d.o.o. (www.marand.com)
+ *
+ * This file is part of ADL2-tools.
+ *
+ * ADL2-tools is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.openehr.designer.repository.github.egitext;
+
+import org.eclipse.egit.github.core.RepositoryId;
+import org.eclipse.egit.github.core.client.GitHubClient;
+import org.eclipse.egit.github.core.client.GitHubRequest;
+import org.eclipse.egit.github.core.client.GitHubResponse;
+import org.eclipse.egit.github.core.client.GsonUtils;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class ExtDataServiceTest {
+
+    @Test
+    public void testRecursiveTreeReportsTruncation() throws Exception {
+        StubClient client = new StubClient("{\"sha\":\"abc\",\"truncated\":true,"
+                + "\"tree\":[{\"path\":\"archetypes/a.adls\",\"type\":\"blob\",\"sha\":\"def\"}]}");
+
+        ExtTree tree = new ExtDataService(client).getTree(new RepositoryId("owner", "repo"), "abc", true);
+
+        assertThat(client.request.generateUri()).isEqualTo("/repos/owner/repo/git/trees/abc?recursive=1");
+        assertThat(tree.isTruncated()).isTrue();
+        assertThat(tree.getTree()).hasSize(1);
+        assertThat(tree.getTree().get(0).getPath()).isEqualTo("archetypes/a.adls");
+    }
+
+    @Test
+    public void testCompleteTree() throws Exception {
+        StubClient client = new StubClient("{\"sha\":\"abc\",\"tree\":[]}");
+
+        ExtTree tree = new ExtDataService(client).getTree(new RepositoryId("owner", "repo"), "abc", false);
+
+        assertThat(client.request.generateUri()).isEqualTo("/repos/owner/repo/git/trees/abc");
+        assertThat(tree.isTruncated()).isFalse();
+    }
+
+    private static class StubClient extends GitHubClient {
+        private final String body;
+        private GitHubRequest request;
+
+        StubClient(String body) {
+            this.body = body;
+        }
+
+        @Override
+        public GitHubResponse get(GitHubRequest request) throws IOException {
+            this.request = request;
+            return new GitHubResponse(null, GsonUtils.fromJson(body, request.getType()));
+        }
+    }
+}